@@ -5,7 +5,6 @@ import argparse.option.Option;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.OutputStream;
-import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.Optional;
 
@@ -50,7 +49,7 @@ public class ArgumentParser {
   }
 
   public void parse(@NotNull Object target, @NotNull String[] args) {
-    Deque<String> stack = new ArrayDeque<>();
+    Deque<String> stack = new Arguments(group::recognizes);
     for (int i = args.length - 1; i >= 0; i--) {
       stack.push(args[i]);
     }
@@ -0,0 +1,27 @@
+package argparse;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.function.Predicate;
+
+/**
+ * The remaining argument stack of a parse, which also knows the option names
+ * registered to the parser
+ */
+public class Arguments extends ArrayDeque<String> {
+
+  private final Predicate<String> optionNames;
+
+  Arguments(@NotNull Predicate<String> optionNames) {
+    this.optionNames = optionNames;
+  }
+
+  /**
+   * @return Whether the argument is the name of an option of the parser
+   */
+  public boolean isOption(String arg) {
+    return optionNames.test(arg);
+  }
+
+}
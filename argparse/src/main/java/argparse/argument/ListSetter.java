@@ -0,0 +1,57 @@
+package argparse.argument;
+
+import argparse.ArgumentParseException;
+import argparse.Arguments;
+import argparse.type.BuildTypeException;
+import argparse.type.TypeBuilderRegistry;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Set a List field for the target object using all the following arguments
+ * up to the next option name of the parser, so elements may start with '-'.
+ * Outside a parser, the list stops at any argument starting with '-'.
+ */
+public class ListSetter implements ArgumentConsumer {
+
+  private final String fieldName;
+  private final Class<?> elementType;
+  private final FieldSetter setter;
+
+  /**
+   * @param validators validating the whole list rather than each element
+   */
+  public ListSetter(String fieldName, Class<?> elementType, Validator ... validators) {
+    this.fieldName = fieldName;
+    this.elementType = elementType;
+    this.setter = new FieldSetter(fieldName, validators);
+  }
+
+  @Override
+  public void consume(@NotNull Object target, @NotNull Deque<String> args) {
+    List<Object> values = new ArrayList<>();
+    while (!args.isEmpty() && !isOption(args, args.peekFirst())) {
+      String repr = args.pop();
+      try {
+        values.add(TypeBuilderRegistry.build(elementType, repr));
+
+      } catch (BuildTypeException e) {
+        throw new ArgumentParseException(String.format("failed to build type '%s'", elementType), e);
+      }
+    }
+
+    if (values.isEmpty()) {
+      throw new TooFewArgumentException(String.format("too few argument for field '%s'", fieldName));
+    }
+
+    setter.set(target, values);
+  }
+
+  private static boolean isOption(Deque<String> args, String arg) {
+    return args instanceof Arguments ? ((Arguments) args).isOption(arg) : arg.startsWith("-");
+  }
+
+}
@@ -42,6 +42,11 @@ public abstract class AbstractOptionGroup extends AbstractOption {
     return this;
   }
 
+  @Override
+  public boolean recognizes(String arg) {
+    return opts.stream().anyMatch(opt -> opt.recognizes(arg));
+  }
+
   @SuppressWarnings("OptionalGetWithoutIsPresent")
   @Override
   public String descriptionLine(int depth, int nameWidth) {
@@ -30,6 +30,11 @@ public interface Option {
    */
   String getName(); // TODO use Collection<String> to support alias
 
+  /**
+   * @return Whether the argument is the name of this option, or of an option in this group
+   */
+  boolean recognizes(String arg);
+
   /**
    * @return The example usage of an option. e.g. ["-n RUN_TIME", "[-help]"]
    */
@@ -51,6 +51,11 @@ public class SingleOption extends AbstractOption {
     return true;
   }
 
+  @Override
+  public boolean recognizes(String arg) {
+    return getName().equals(arg);
+  }
+
   @Override
   public Collection<String> exampleUsage() {
     String example = getName();
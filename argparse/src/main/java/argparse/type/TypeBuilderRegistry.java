@@ -32,6 +32,10 @@ public class TypeBuilderRegistry {
   }
 
   public static Object build(Class<?> type, @NotNull String repr) throws BuildTypeException {
+    if (!registry.containsKey(type) && type.isEnum()) {
+      return buildEnum(type, repr);
+    }
+
     if (!registry.containsKey(type)) {
       throw new BuildTypeException(String.format("no TypeBuilder registered for '%s'", type));
     }
@@ -44,6 +48,16 @@ public class TypeBuilderRegistry {
     }
   }
 
+  @SuppressWarnings("unchecked")
+  private static Object buildEnum(Class<?> type, @NotNull String repr) throws BuildTypeException {
+    try {
+      return Enum.valueOf(type.asSubclass(Enum.class), repr);
+
+    } catch (IllegalArgumentException e) {
+      throw new BuildTypeException(String.format("'%s' is not a constant of '%s'", repr, type.getSimpleName()));
+    }
+  }
+
   public static void register(@NotNull Class<?> type, @NotNull TypeBuilder builder) {
     registry.put(type, builder);
   }
@@ -0,0 +1,18 @@
+package dsf16;
+
+import java.util.List;
+
+/**
+ * An analysis of the history of the register under test, whose written values are unique
+ */
+interface Analyst {
+  /**
+   * Record a completed request; calls must not overlap
+   */
+  void addEntry(RPCEntry entry);
+
+  /**
+   * @return entries witnessing an inconsistency of the history recorded, empty if none was found
+   */
+  List<RPCEntry> analyze();
+}
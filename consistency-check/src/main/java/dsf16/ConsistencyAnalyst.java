@@ -1,103 +1,145 @@
 package dsf16;
 
 import ch.qos.logback.classic.Level;
-import graph.CycleDetectedException;
-import graph.Graph;
-import graph.Vertex;
+import graph.IntGraph;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
 
 /**
- * Check consistency for RPCEntry graph. If some inconsistency is observed, CycleDetectedException
- * is to be thrown.
+ * Check consistency for RPCEntry graph. If some inconsistency is observed, a cycle of entries
+ * witnessing it is returned.
+ *
+ * <p>The graph is built over the indices of the entries in an {@link IntGraph}, so that
+ * analysing a history of millions of requests takes a few dozen bytes per request.</p>
  */
-class ConsistencyAnalyst {
+class ConsistencyAnalyst implements Analyst {
   private static final Logger logger = LoggerFactory.getLogger(ConsistencyAnalyst.class);
 
-  private final Graph<RPCEntry> precedingGraph = new Graph<>();
+  private final List<RPCEntry> entries = new ArrayList<>();
 
-  void addEntry(RPCEntry entry) {
-    precedingGraph.newVertex(entry);
+  @Override
+  public void addEntry(RPCEntry entry) {
+    entries.add(entry);
   }
 
-  void analyze() {
+  /**
+   * @return a witness of inconsistency: entries each having to precede the next and the last
+   *         the first, or a lone read of a value never written; empty if none was found
+   */
+  @Override
+  public List<RPCEntry> analyze() {
     ((ch.qos.logback.classic.Logger) logger).setLevel(Level.INFO);
-    Map<String, Vertex<RPCEntry>> dictatorMap = new HashMap<>();
-
-    ArrayList<Vertex<RPCEntry>> startTimeIncreasingEntries =
-      new ArrayList<>(precedingGraph.getVertices());
-
-    ArrayList<Vertex<RPCEntry>> endTimeDecreasingEntries =
-      new ArrayList<>(precedingGraph.getVertices());
-
-    startTimeIncreasingEntries.sort((a, b) -> Long.compare(a.getValue().start, b.getValue().start));
-    endTimeDecreasingEntries.sort((a, b) -> Long.compare(b.getValue().end, a.getValue().end));
-
+    int n = entries.size();
+    IntGraph precedingGraph = new IntGraph(n);
+    long[] starts = new long[n];
+    long[] ends = new long[n];
+    for (int i = 0; i < n; i++) {
+      starts[i] = entries.get(i).start;
+      ends[i] = entries.get(i).end;
+    }
+    int[] startTimeIncreasingEntries = order(starts);
+    int[] endTimeIncreasingEntries = order(ends);
+    Map<String, Integer> dictatorMap = new HashMap<>();
+
+    // Only the edges of the transitive reduction are added: an entry gets one from each
+    // entry of the frontier, those ended before it started and followed by none ended so
+    // far. Sweeping the entries by start, the ends passed join the frontier, and each one
+    // joining pushes out those it follows, which ended first.
     logger.info("Adding time edges...");
-    for (Vertex<RPCEntry> last : startTimeIncreasingEntries) {
-      RPCEntry lastEntry = last.getValue();
+    int[] frontier = new int[n];
+    int head = 0, tail = 0, ended = 0;
+    for (int last : startTimeIncreasingEntries) {
+      RPCEntry lastEntry = entries.get(last);
       if (!lastEntry.isRead) { dictatorMap.put(lastEntry.value, last); }
 
-      long leftBound = Long.MIN_VALUE;
-      for (Vertex<RPCEntry> preceding : endTimeDecreasingEntries) {
-        RPCEntry entry = preceding.getValue();
-        if (!entry.happenBefore(lastEntry)) { continue; }
-        if (leftBound < entry.end) {
-          preceding.add_edge_to(last);
-          leftBound = Math.max(leftBound, entry.start);
-        } else break;
+      for (; ended < n && entries.get(endTimeIncreasingEntries[ended]).happenBefore(lastEntry); ended++) {
+        RPCEntry endedEntry = entries.get(endTimeIncreasingEntries[ended]);
+        while (head < tail && entries.get(frontier[head]).happenBefore(endedEntry)) { head++; }
+        frontier[tail++] = endTimeIncreasingEntries[ended];
+      }
+      for (int i = head; i < tail; i++) {
+        precedingGraph.addEdge(frontier[i], last);
       }
     }
 
     logger.info("Adding data edges...");
-    for (Vertex<RPCEntry> readerVertex : startTimeIncreasingEntries) {
-      RPCEntry readEntry = readerVertex.getValue();
+    int[] dictators = new int[n];
+    for (int reader : startTimeIncreasingEntries) {
+      RPCEntry readEntry = entries.get(reader);
       if (readEntry.isRead) {
-        Vertex<RPCEntry> writerVertex = dictatorMap.get(readEntry.value);
-        if (writerVertex == null) {
+        Integer writer = dictatorMap.get(readEntry.value);
+        if (writer == null) {
           logger.error("Read value {} with no dictator!", readEntry.value);
-          throw new CycleDetectedException();
+          return Collections.singletonList(readEntry);
         }
-        writerVertex.add_edge_to(readerVertex);
+        dictators[reader] = writer;
+        precedingGraph.addEdge(writer, reader);
       }
     }
+    precedingGraph.compact();
 
+    // A writer reaching a read of another writer's value must precede that writer. The
+    // writers on the stack reach each other in order, so an edge from the nearest one
+    // implies the edges from the others.
     logger.info("Adding hybrid edges...");
-    Deque<Vertex<RPCEntry>> writerStack = new ArrayDeque<>();
-    Set<Vertex<RPCEntry>> metWriters = new HashSet<>();
-
-    for (Vertex<RPCEntry> writer : startTimeIncreasingEntries) {
-      if (writer.getValue().isRead || metWriters.contains(writer)) { continue; }
-      precedingGraph.DepthFirstTraversal(
-        (Graph.Vertex<RPCEntry>) writer,
-        (map, v) -> {
-          if (v.getValue().isRead) {
-            Vertex<RPCEntry> dictator = dictatorMap.get(v.getValue().value);
-            for (Vertex<RPCEntry> w : writerStack) if (w != dictator) {
-              ((Graph.Vertex<RPCEntry>)w).add_hybrid_edge_to(dictator);
-            }
+    int[] writerStack = new int[n];
+    int[] stackSize = new int[1];
+    boolean[] metWriters = new boolean[n];
+
+    for (int writer : startTimeIncreasingEntries) {
+      if (entries.get(writer).isRead || metWriters[writer]) { continue; }
+      precedingGraph.depthFirstTraversal(
+        writer,
+        v -> {
+          if (entries.get(v).isRead) {
+            int nearest = writerStack[stackSize[0] - 1];
+            if (nearest != dictators[v]) { precedingGraph.addEdge(nearest, dictators[v]); }
           } else {
-            metWriters.add(v);
-            writerStack.push(v);
+            metWriters[v] = true;
+            writerStack[stackSize[0]++] = v;
           }
-          return null;
         },
-        (map, v) -> {
-          if (!v.getValue().isRead) {
-            writerStack.pop();
+        v -> {
+          if (!entries.get(v).isRead) {
+            stackSize[0]--;
           }
-          return null;
         });
     }
 
     logger.info("Finding cycle...");
-    for (Vertex<RPCEntry> vertex : precedingGraph.getVertices()) {
-      ((Graph.Vertex<RPCEntry>)vertex).combineNormalAndHybridEdges();
-    }
+    precedingGraph.compact();
 
     // Find cycle
-    precedingGraph.DepthFirstTraversal(null);
+    int[] cycle = precedingGraph.findCycle();
+    if (cycle == null) { return Collections.emptyList(); }
+    List<RPCEntry> witness = new ArrayList<>(cycle.length);
+    for (int v : cycle) { witness.add(entries.get(v)); }
+    return witness;
+  }
+
+  /**
+   * @return the indices of the keys in increasing order of key, equal keys in index order
+   */
+  private static int[] order(long[] keys) {
+    int[] order = new int[keys.length];
+    int[] buffer = new int[keys.length];
+    for (int i = 0; i < order.length; i++) { order[i] = i; }
+    for (int width = 1; width < order.length; width *= 2) {
+      for (int low = 0; low < order.length; low += 2 * width) {
+        int middle = Math.min(low + width, order.length);
+        int high = Math.min(low + 2 * width, order.length);
+        int left = low, right = middle;
+        for (int i = low; i < high; i++) {
+          buffer[i] = right == high || (left < middle && keys[order[left]] <= keys[order[right]])
+            ? order[left++] : order[right++];
+        }
+      }
+      int[] swap = order;
+      order = buffer;
+      buffer = swap;
+    }
+    return order;
   }
 }
@@ -0,0 +1,50 @@
+package dsf16;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+
+/**
+ * Runs the DAG algorithm and the zone checker on the same history and reports where they
+ * disagree. The zone checker being exact, only a violation found by the DAG algorithm alone
+ * shows a fault in one of them.
+ */
+class CrossValidatingAnalyst implements Analyst {
+  private static final Logger logger = LoggerFactory.getLogger(CrossValidatingAnalyst.class);
+
+  private final ConsistencyAnalyst graphAnalyst = new ConsistencyAnalyst();
+
+  private final ZoneAnalyst zoneAnalyst = new ZoneAnalyst();
+
+  @Override
+  public void addEntry(RPCEntry entry) {
+    graphAnalyst.addEntry(entry);
+    zoneAnalyst.addEntry(entry);
+  }
+
+  /**
+   * @return the witness of the zone checker, or of the DAG algorithm if it alone found one
+   */
+  @Override
+  public List<RPCEntry> analyze() {
+    long start = System.currentTimeMillis();
+    List<RPCEntry> zoneWitness = zoneAnalyst.analyze();
+    long zoneMillis = System.currentTimeMillis() - start;
+    start = System.currentTimeMillis();
+    List<RPCEntry> graphWitness = graphAnalyst.analyze();
+    long graphMillis = System.currentTimeMillis() - start;
+    logger.info("Zone checker: {} in {} ms, DAG algorithm: {} in {} ms",
+      zoneWitness.isEmpty() ? "atomic" : "inconsistent", zoneMillis,
+      graphWitness.isEmpty() ? "atomic" : "inconsistent", graphMillis);
+
+    if (zoneWitness.isEmpty() && !graphWitness.isEmpty()) {
+      logger.error("Only the DAG algorithm found an inconsistency, witness: {}", graphWitness);
+      return graphWitness;
+    }
+    if (!zoneWitness.isEmpty() && graphWitness.isEmpty()) {
+      logger.info("Only the zone checker found an inconsistency");
+    }
+    return zoneWitness;
+  }
+}
@@ -3,25 +3,32 @@ package dsf16;
 import argparse.ArgumentParseException;
 import argparse.ArgumentParser;
 import argparse.argument.FieldSetter;
+import argparse.argument.ListSetter;
 import argparse.option.SingleOption;
 import argparse.type.TypeBuilderRegistry;
-import graph.CycleDetectedException;
+import kvclient.ConnectionPool;
+import kvclient.Connector;
+import kvclient.HashRing;
+import kvclient.NearCacheClient;
+import kvclient.PipelinedClient;
+import kvclient.PooledConnection;
+import kvclient.VirtualThreads;
 import kvstore.KVStore;
 import kvstore.Result;
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.protocol.TProtocol;
-import org.apache.thrift.transport.TSocket;
-import org.apache.thrift.transport.TTransport;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import static kvstore.ErrorCode.kSuccess;
 
@@ -38,13 +45,31 @@ public class KVStoreConsistencyTester {
   static {
     TypeBuilderRegistry.register(URI.class, s -> URI.create("my://" + s));
 
-    FieldSetter serverSetter = new FieldSetter("server",
-      o -> ((URI)o).getHost() != null && ((URI)o).getPort() != -1);
+    ListSetter serverSetter = new ListSetter("servers", URI.class,
+      o -> ((List<?>)o).stream().allMatch(uri -> ((URI)uri).getHost() != null && ((URI)uri).getPort() != -1));
 
     parser
       .addOption(new SingleOption("-server", serverSetter))
-      .argPlaceholder("HOST:PORT")
-      .description("Specify the location of the server");
+      .argPlaceholder("HOST:PORT...")
+      .description("Specify the location of the server, or of every node of a partitioned cluster");
+
+    parser
+      .addOption(new SingleOption("-protocol", new FieldSetter("protocol")))
+      .optional(true)
+      .argPlaceholder("binary|compact")
+      .description("Set the protocol, binary by default; it must match the server's");
+
+    parser
+      .addOption(new SingleOption("-transport", new FieldSetter("transport")))
+      .optional(true)
+      .argPlaceholder("buffered|framed")
+      .description("Set the transport, buffered by default; framed is required by a server in selector mode");
+
+    parser
+      .addOption(new SingleOption("-frame", new FieldSetter("maxFrameBytes", o -> ((int)o) > 0)))
+      .optional(true)
+      .argPlaceholder("BYTES")
+      .description("Set the largest frame accepted with framed transport");
 
     parser
       .addOption(new SingleOption("-conntimeout", new FieldSetter("connectionTimeoutSeconds", o -> ((int)o) > 0)))
@@ -66,10 +91,27 @@ public class KVStoreConsistencyTester {
       .optional(true)
       .argPlaceholder("THREAD_NUM").description("Set the number of threads");
 
+    parser.addOption(new SingleOption("-virtual", new FieldSetter("useVirtualThreads").set(true)))
+      .optional(true)
+      .description("Run every sending thread as a virtual thread, so that -j may reach tens of thousands (Java 21)");
+
+    parser.addOption(new SingleOption("-window", new FieldSetter("window", o -> ((int)o) > 0)))
+      .optional(true)
+      .argPlaceholder("NUM").description("Set the number of requests each thread keeps in flight on its connection");
+
+    parser.addOption(new SingleOption("-cache", new FieldSetter("useNearCache").set(true)))
+      .optional(true)
+      .description("Send the requests through a near cache shared by all threads, for servers granting leases");
+
     parser.addOption(new SingleOption("-timeout", new FieldSetter("programTimeoutSeconds", o -> ((int)o) > 0)))
       .optional(true)
       .argPlaceholder("SECS").description("Set the running timeout of the whole program");
 
+    parser.addOption(new SingleOption("-engine", new FieldSetter("engine")))
+      .optional(true)
+      .argPlaceholder("dag|zones|both|online")
+      .description("Set the analysis engine, dag by default");
+
     parser.addOption(new SingleOption("-no-fastcheck", new FieldSetter("useFastChecker").set(false)))
       .optional(true)
       .description("Do not use fast checker (A single thread tester testing if it reads most recent writes)");
@@ -79,9 +121,21 @@ public class KVStoreConsistencyTester {
       .description("Show debug logs");*/
   }
 
+  /**
+   * How the recorded history is analysed.
+   * <ul>
+   *   <li>dag: the DAG algorithm of {@link ConsistencyAnalyst}</li>
+   *   <li>zones: the exact and faster zone checker of {@link ZoneAnalyst}</li>
+   *   <li>both: both of them, reporting where they disagree</li>
+   *   <li>online: the zone checker of {@link StreamingAnalyst}, run while sending and
+   *   stopping at the first inconsistency</li>
+   * </ul>
+   */
+  enum Engine { dag, zones, both, online }
+
   @FunctionalInterface
   interface ClientInvocation {
-    void apply(KVStore.Client client) throws TException;
+    void apply(KVStore.Iface client) throws TException;
   }
 
   private static final AtomicLong sequence = new AtomicLong();
@@ -94,7 +148,21 @@ public class KVStoreConsistencyTester {
 
   private final String testKey = "yangliu";
 
-  private URI server;
+  private List<URI> servers;
+
+  private HashRing ring;
+
+  private Connector.Protocol protocol = Connector.Protocol.binary;
+
+  private Connector.Transport transport = Connector.Transport.buffered;
+
+  private int maxFrameBytes = Connector.defaultMaxFrameBytes;
+
+  private InetSocketAddress endpoint;
+
+  private Connector connector;
+
+  private ConnectionPool pool;
 
   private boolean isDebug = false;
 
@@ -102,8 +170,12 @@ public class KVStoreConsistencyTester {
 
   private CountDownLatch remainingRequestNumber;
 
+  private final AtomicLong unsentRequestNumber = new AtomicLong();
+
   private int threadNumber = 20;
 
+  private int window = 1;
+
   private int connectionTimeoutSeconds = 10;
 
   private int sendingTimeoutSeconds = 10;
@@ -112,7 +184,18 @@ public class KVStoreConsistencyTester {
 
   private boolean useFastChecker = true;
 
-  private final ConsistencyAnalyst analyst = new ConsistencyAnalyst();
+  private boolean useNearCache = false;
+
+  private boolean useVirtualThreads = false;
+
+  private NearCacheClient nearCache;
+
+  private Engine engine = Engine.dag;
+
+  private Analyst analyst;
+
+  /** the analyst when the engine is online */
+  private StreamingAnalyst online;
   private final ReentrantLock addingEntry = new ReentrantLock();
 
   public static void main(String[] args) {
@@ -127,7 +210,49 @@ public class KVStoreConsistencyTester {
       parser.printUsage("USAGE: consistency-tester");
       System.exit(-1);
     }
+    if (useNearCache && window > 1) {
+      System.err.println("ERROR: -cache cannot be combined with -window\n");
+      parser.printUsage("USAGE: consistency-tester");
+      System.exit(-1);
+    }
+    if (useVirtualThreads && !VirtualThreads.isAvailable()) {
+      System.err.println("ERROR: -virtual is unavailable, " + VirtualThreads.unavailableReason() + "\n");
+      parser.printUsage("USAGE: consistency-tester");
+      System.exit(-1);
+    }
+    switch (engine) {
+      case zones:
+        analyst = new ZoneAnalyst();
+        break;
+      case both:
+        analyst = new CrossValidatingAnalyst();
+        break;
+      case online:
+        analyst = online = new StreamingAnalyst();
+        break;
+      case dag:
+      default:
+        analyst = new ConsistencyAnalyst();
+    }
     remainingRequestNumber = new CountDownLatch(totalRequestNumber);
+    ring = new HashRing(servers.stream()
+      .map(uri -> InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort()))
+      .collect(Collectors.toList()));
+    // the node owning the key under test
+    endpoint = ring.nodeFor(testKey);
+    connector = new Connector()
+      .connectTimeout(connectionTimeoutSeconds * 1000)
+      .readTimeout(connectionTimeoutSeconds * 1000)
+      .protocol(protocol)
+      .transport(transport)
+      .maxFrameBytes(maxFrameBytes);
+    // every sender holds one connection, plus the initializer, the fast checker and the
+    // invalidation poller of the near cache
+    pool = new ConnectionPool(connector).maxActive(threadNumber + 3).maxIdle(threadNumber + 3);
+    if (useNearCache) {
+      nearCache = new NearCacheClient(pool, endpoint, NearCacheClient.defaultCapacity);
+    }
+    unsentRequestNumber.set(totalRequestNumber);
 
     /*if (!isDebug) {
       ((ch.qos.logback.classic.Logger) logger).setLevel(Level.INFO);
@@ -161,25 +286,23 @@ public class KVStoreConsistencyTester {
       fastChecker = Executors.newSingleThreadExecutor().submit(this::fastCheck);
     }
     try {
-      analyst.analyze();
-      logger.info("No inconsistency detected in graph algorithm");
+      List<RPCEntry> witness = analyst.analyze();
+      if (!witness.isEmpty()) {
+        logger.info("Inconsistency detected! Witness: {}", witness);
+        System.exit(1);
+      }
+      logger.info("No inconsistency detected, engine: {}", engine);
       logger.info("To try harder please check -j and -n options");
       if (fastChecker != null) {
         logger.info("Use the rest of time to do more fast check...");
         fastChecker.get();
       }
       System.exit(0);
-    } catch (CycleDetectedException e) {
-      logger.info("Inconsistency detected!");
-      System.exit(1);
     } catch (InterruptedException ie) {
       Thread.currentThread().interrupt();
     } catch (ExecutionException ee) {
       logger.warn("fast checker died abnormally. abort.");
       System.exit(2);
-    } catch (StackOverflowError se) {
-      logger.warn("DFS recursion level is too deep, please try again. abort.");
-      System.exit(2);
     } finally {
       if (fastChecker != null) {
         fastChecker.cancel(true);
@@ -189,10 +312,10 @@ public class KVStoreConsistencyTester {
 
   private void fastCheck() {
     final String key = "fastYang";
-    withClientOpened(client -> {
+    withClientOpened(ring.nodeFor(key), client -> {
       long v = 0;
       while (!Thread.currentThread().isInterrupted()) {
-        Result result = client.kvset(key, String.valueOf(v++));
+        Result result = client.kvset(key, String.valueOf(v++), 0);
         if (result.error == kSuccess) {
           result = client.kvget(key);
           if (!result.value.equals(String.valueOf(v - 1))) {
@@ -206,21 +329,33 @@ public class KVStoreConsistencyTester {
   }
 
   private void sendTestingRequests() {
-    ExecutorService executorService = Executors.newFixedThreadPool(threadNumber);
+    ExecutorService executorService = useVirtualThreads
+      ? VirtualThreads.newPerTaskExecutor("request-sender-") : Executors.newFixedThreadPool(threadNumber);
     Collection<Future<?>> tasks = new LinkedList<>();
 
     logger.info("Sending requests...");
     logger.info("Request number: {}", remainingRequestNumber.getCount());
-    logger.info("Threads: {}, Sending Timeout: {} sec", threadNumber, sendingTimeoutSeconds);
+    logger.info("Threads: {}{}, Window: {}, Sending Timeout: {} sec",
+      threadNumber, useVirtualThreads ? " virtual" : "", window, sendingTimeoutSeconds);
 
     for (int i = 0; i < threadNumber; i++) {
-      tasks.add(executorService.submit(() -> withClientOpened(client -> {
-        while (!Thread.currentThread().isInterrupted() && remainingRequestNumber.getCount() != 0) {
-          remainingRequestNumber.countDown();
-          sendRequest(client);
-        }
-        logger.info("Finished request sending");
-      })));
+      if (window > 1) {
+        tasks.add(executorService.submit(() -> withPipelinedClientOpened(client -> {
+          while (!Thread.currentThread().isInterrupted() && unsentRequestNumber.getAndDecrement() > 0) {
+            sendRequest(client);
+          }
+          logger.info("Finished request sending");
+        })));
+      } else {
+        Consumer<ClientInvocation> opened = useNearCache ? this::withNearCache : this::withClientOpened;
+        tasks.add(executorService.submit(() -> opened.accept(client -> {
+          while (!Thread.currentThread().isInterrupted() && unsentRequestNumber.getAndDecrement() > 0) {
+            sendRequest(client);
+            remainingRequestNumber.countDown();
+          }
+          logger.info("Finished request sending");
+        })));
+      }
     }
 
     requestSenderTimeoutStopper.submit(() -> {
@@ -248,7 +383,7 @@ public class KVStoreConsistencyTester {
     Future<?> initialized = Executors.newSingleThreadExecutor().submit(() -> {
       logger.info("Setting initial value for testing keys...");
       withClientOpened(client -> {
-        client.kvset(testKey, initValue);
+        client.kvset(testKey, initValue, 0);
         Result result;
         do {
           result = client.kvget(testKey);
@@ -269,42 +404,106 @@ public class KVStoreConsistencyTester {
     }
   }
 
-  private void sendRequest(KVStore.Client client) throws TException {
-    String value = "";
+  private void sendRequest(KVStore.Iface client) throws TException {
     boolean isRead = ThreadLocalRandom.current().nextBoolean();
-    long before = sequence.incrementAndGet();
-    Result result;
-    if (isRead) {
-      result = client.kvget(testKey);
-    } else {
-      value = String.valueOf(writeValue.incrementAndGet());
-      result = client.kvset(testKey, value);
+    String value = isRead ? "" : String.valueOf(writeValue.incrementAndGet());
+    long before = begin(isRead ? null : value);
+    Result result = isRead ? client.kvget(testKey) : client.kvset(testKey, value, 0);
+    record(before, isRead ? result.value : value, isRead, result);
+  }
+
+  /**
+   * Send a request without waiting for its response, which is recorded on arrival.
+   * The window wait counts into the request duration, widening it harmlessly.
+   */
+  private void sendRequest(PipelinedClient client) {
+    boolean isRead = ThreadLocalRandom.current().nextBoolean();
+    String value = isRead ? "" : String.valueOf(writeValue.incrementAndGet());
+    long before = begin(isRead ? null : value);
+    CompletableFuture<Result> response = isRead ? client.kvget(testKey) : client.kvset(testKey, value, 0);
+    response.whenComplete((result, error) -> {
+      if (error != null) {
+        logger.error(error.getMessage());
+        System.exit(2);
+      }
+      record(before, isRead ? result.value : value, isRead, result);
+      remainingRequestNumber.countDown();
+    });
+  }
+
+  /**
+   * @param written the value the request writes, null for a read
+   * @return the start of a request, also told to the online analyst if any, atomically so
+   *         that it knows of every request started
+   */
+  private long begin(String written) {
+    if (online == null) { return sequence.incrementAndGet(); }
+    addingEntry.lock();
+    try {
+      long before = sequence.incrementAndGet();
+      online.begin(before, written);
+      return before;
+    } finally {
+      addingEntry.unlock();
     }
-    long after = sequence.incrementAndGet();
-    if (result.error == kSuccess) {
-      value = isRead ? result.value : value;
+  }
+
+  /**
+   * The end of the request is taken under the lock, so that entries are recorded in end
+   * order. The online analyst stops the program at the first inconsistency.
+   */
+  private void record(long before, String value, boolean isRead, Result result) {
+    addingEntry.lock();
+    try {
+      long after = sequence.incrementAndGet();
+      if (result.error != kSuccess) {
+        logger.warn("bad Result received");
+        if (online != null) { online.abandon(before); }
+        return;
+      }
       /*logger.debug("send: {}, receive: {}, method: {}, value: {}",
         before, after, isRead ? "get" : "set", value);*/
-      RPCEntry entry = new RPCEntry(before, after, value, isRead);
-      addingEntry.lock();
-      analyst.addEntry(entry);
+      analyst.addEntry(new RPCEntry(before, after, value, isRead));
+      if (online != null && !online.violation().isEmpty()) {
+        logger.info("Inconsistency detected while sending! Witness: {}", online.violation());
+        System.exit(1);
+      }
+    } finally {
       addingEntry.unlock();
-    } else {
-      logger.warn("bad Result received");
     }
   }
 
-  private void withClientOpened(ClientInvocation invocation) {
+  private void withPipelinedClientOpened(Consumer<PipelinedClient> invocation) {
+    PipelinedClient client = null;
     try {
-      TTransport transport = new TSocket(server.getHost(), server.getPort(), connectionTimeoutSeconds * 1000);
-      transport.open();
+      client = new PipelinedClient(connector.open(endpoint), connector.protocolFactory(), window);
+      invocation.accept(client);
+    } catch (TException x) {
+      logger.error(x.getMessage());
+      x.printStackTrace();
+      System.exit(2);
+    } finally {
+      if (client != null) { client.close(); }
+    }
+  }
 
-      TProtocol protocol = new TBinaryProtocol(transport);
-      KVStore.Client client = new KVStore.Client(protocol);
+  private void withNearCache(ClientInvocation invocation) {
+    try {
+      invocation.apply(nearCache);
+    } catch (TException x) {
+      logger.error(x.getMessage());
+      x.printStackTrace();
+      System.exit(2);
+    }
+  }
 
-      invocation.apply(client);
+  private void withClientOpened(ClientInvocation invocation) {
+    withClientOpened(endpoint, invocation);
+  }
 
-      transport.close();
+  private void withClientOpened(InetSocketAddress node, ClientInvocation invocation) {
+    try (PooledConnection connection = pool.borrow(node)) {
+      invocation.apply(connection.client());
     } catch (TException x) {
       logger.error(x.getMessage());
       x.printStackTrace();
@@ -0,0 +1,227 @@
+package dsf16;
+
+import dsf16.ZoneAnalyst.Zone;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * <p>The zone checker of {@link ZoneAnalyst}, run incrementally as requests complete, so that
+ * an inconsistency is reported as soon as the requests showing it have completed. Requests
+ * must be begun in start order and recorded in end order.</p>
+ *
+ * <p>Only the clusters of recent values are kept. Zones only grow as reads come in, so each
+ * new or grown zone is checked against its neighbours alone, in ordered maps of the forward
+ * and backward zones. Every request still to complete starts after the watermark, the
+ * earliest start in flight. Once a zone lies wholly between the first end of a cluster and
+ * the watermark, a new read of that cluster must be inconsistent. A cluster found so, and
+ * whose zone no other may still grow into, is retired. A read of a retired value, like one
+ * of a value never written, is then a witness on its own.</p>
+ */
+class StreamingAnalyst implements Analyst {
+  private static final Logger logger = LoggerFactory.getLogger(StreamingAnalyst.class);
+
+  /** a zone queued until the watermark passes its end */
+  private static class Queued {
+    final long high;
+    final Zone zone;
+
+    Queued(Zone zone) {
+      this.high = zone.high();
+      this.zone = zone;
+    }
+  }
+
+  /** the start of every request in flight, with the value it writes, null for reads */
+  private final TreeMap<Long, String> inFlight = new TreeMap<>();
+
+  private final Set<String> writing = new HashSet<>();
+
+  /** reads of values being written, by value */
+  private final Map<String, List<RPCEntry>> orphans = new HashMap<>();
+
+  /** the clusters of values whose write has completed and which are not retired */
+  private final Map<String, Zone> live = new HashMap<>();
+
+  private final TreeMap<Long, Zone> forward = new TreeMap<>();
+
+  private final TreeMap<Long, Zone> backward = new TreeMap<>();
+
+  private final TreeMap<Long, Zone> byFirstEnd = new TreeMap<>();
+
+  private final PriorityQueue<Queued> unsettled = new PriorityQueue<>(Comparator.comparingLong(queued -> queued.high));
+
+  /** a cluster ending first below it can take no more reads */
+  private long retireBelow = Long.MIN_VALUE;
+
+  private long latest = 0;
+
+  private long entryCount = 0;
+
+  private long retiredCount = 0;
+
+  private int peakLive = 0;
+
+  private List<RPCEntry> violation = Collections.emptyList();
+
+  /**
+   * Record the start of a request
+   *
+   * @param written the value the request writes, null for a read
+   */
+  void begin(long start, String written) {
+    inFlight.put(start, written);
+    if (written != null) { writing.add(written); }
+    latest = Math.max(latest, start);
+  }
+
+  /**
+   * Forget a request begun that will not be recorded
+   */
+  void abandon(long start) {
+    String written = inFlight.remove(start);
+    if (written == null) { return; }
+    writing.remove(written);
+    List<RPCEntry> reads = orphans.remove(written);
+    if (reads != null) { report(Collections.singletonList(reads.get(0)), "Read value {} of a failed write!", written); }
+  }
+
+  /**
+   * Record a completed request, begun unless it is the initial write, and check the
+   * zones it changes
+   */
+  @Override
+  public void addEntry(RPCEntry entry) {
+    if (!violation.isEmpty()) { return; }
+    entryCount++;
+    inFlight.remove(entry.start);
+    latest = Math.max(latest, entry.end);
+
+    if (!entry.isRead) {
+      writing.remove(entry.value);
+      Zone zone = new Zone(entry);
+      for (RPCEntry read : orphans.getOrDefault(entry.value, Collections.emptyList())) {
+        if (read.happenBefore(entry)) {
+          report(Arrays.asList(read, entry), "Read value {} before it was written!", entry.value);
+          return;
+        }
+        zone.add(read);
+      }
+      orphans.remove(entry.value);
+      live.put(entry.value, zone);
+      peakLive = Math.max(peakLive, live.size());
+      insert(zone);
+      check(zone);
+    } else if (live.containsKey(entry.value)) {
+      Zone zone = live.get(entry.value);
+      remove(zone);
+      zone.add(entry);
+      insert(zone);
+      check(zone);
+    } else if (writing.contains(entry.value)) {
+      orphans.computeIfAbsent(entry.value, value -> new ArrayList<>()).add(entry);
+    } else {
+      report(Collections.singletonList(entry), "Read value {} neither being written nor recently written!", entry.value);
+    }
+    if (violation.isEmpty()) { retire(); }
+  }
+
+  /**
+   * @return the witness of the first inconsistency found, empty if none so far
+   */
+  List<RPCEntry> violation() {
+    return violation;
+  }
+
+  /**
+   * Reads of values whose write never completed are ignored, since the history is cut short
+   *
+   * @return the witness of the first inconsistency found, empty if none
+   */
+  @Override
+  public List<RPCEntry> analyze() {
+    logger.info("{} entries checked while sending, {} values retired, at most {} kept", entryCount, retiredCount, peakLive);
+    if (!orphans.isEmpty()) { logger.info("Ignored reads of {} values whose write did not complete", orphans.size()); }
+    return violation;
+  }
+
+  private void insert(Zone zone) {
+    (zone.isForward() ? forward : backward).put(zone.low(), zone);
+    byFirstEnd.put(zone.firstEnded.end, zone);
+    unsettled.add(new Queued(zone));
+  }
+
+  private void remove(Zone zone) {
+    (zone.isForward() ? forward : backward).remove(zone.low());
+    byFirstEnd.remove(zone.firstEnded.end);
+  }
+
+  /**
+   * Check a new or grown zone against the others, which are consistent with each other
+   */
+  private void check(Zone zone) {
+    long low = zone.low();
+    long high = zone.high();
+    if (zone.isForward()) {
+      Map.Entry<Long, Zone> before = forward.lowerEntry(low);
+      if (before != null && before.getValue().high() > low) { conflict(before.getValue(), zone); return; }
+      Map.Entry<Long, Zone> after = forward.higherEntry(low);
+      if (after != null && after.getValue().low() < high) { conflict(zone, after.getValue()); return; }
+      for (Zone within : backward.subMap(low, false, high, false).values()) {
+        if (within.high() < high) { conflict(zone, within); return; }
+      }
+    } else {
+      Map.Entry<Long, Zone> around = forward.lowerEntry(low);
+      if (around != null && around.getValue().high() > high) { conflict(around.getValue(), zone); }
+    }
+  }
+
+  /**
+   * Raise the retirement bound with the zones the watermark has passed, and retire the
+   * clusters ending first below it that no zone may still grow into. A zone grows from the
+   * first end of its cluster past the watermark, and so does a new one from the first end
+   * of its orphan reads: a zone the watermark has passed is safe once no other cluster
+   * ends first before its start if backward, or before its end if forward.
+   */
+  private void retire() {
+    long watermark = inFlight.isEmpty() ? latest + 1 : inFlight.firstKey();
+    while (!unsettled.isEmpty() && unsettled.peek().high < watermark) {
+      Zone zone = unsettled.poll().zone;
+      if (live.get(zone.write.value) == zone && zone.high() < watermark) { retireBelow = Math.max(retireBelow, zone.low()); }
+    }
+    long orphanFirstEnd = Long.MAX_VALUE;
+    for (List<RPCEntry> reads : orphans.values()) { orphanFirstEnd = Math.min(orphanFirstEnd, reads.get(0).end); }
+
+    boolean retired = true;
+    while (retired) {
+      retired = false;
+      Iterator<Zone> candidates = byFirstEnd.headMap(retireBelow).values().iterator();
+      while (candidates.hasNext()) {
+        Zone zone = candidates.next();
+        if (zone.high() >= watermark) { continue; }
+        long firstEnd = byFirstEnd.firstKey();
+        if (firstEnd == zone.firstEnded.end) {
+          Long next = byFirstEnd.higherKey(firstEnd);
+          firstEnd = next == null ? Long.MAX_VALUE : next;
+        }
+        if (Math.min(firstEnd, orphanFirstEnd) < (zone.isForward() ? zone.high() : zone.low())) { continue; }
+        candidates.remove();
+        (zone.isForward() ? forward : backward).remove(zone.low());
+        live.remove(zone.write.value);
+        retiredCount++;
+        retired = true;
+      }
+    }
+  }
+
+  private void conflict(Zone one, Zone other) {
+    report(ZoneAnalyst.witness(one, other), "Zones of values {} conflict!", one.write.value + " and " + other.write.value);
+  }
+
+  private void report(List<RPCEntry> witness, String format, String value) {
+    logger.error(format, value);
+    logger.info("Found after {} entries, {} values retired", entryCount, retiredCount);
+    violation = witness;
+  }
+}
@@ -0,0 +1,112 @@
+package dsf16;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+
+/**
+ * <p>Decides whether the history of a register is atomic from the zones of its values, in
+ * O(n log n) time and without building a graph (Gibbons and Korach). Values being written
+ * once, the cluster of a value is its write and the reads returning it. Its zone spans the
+ * earliest end and the latest start among those: it is forward if the end comes first, and
+ * backward if they all overlap.</p>
+ *
+ * <p>The history is atomic if and only if every read returns a written value and does not
+ * end before that write starts, no two forward zones overlap, and no backward zone lies
+ * within a forward one. Unlike the DAG algorithm this is exact, so it catches every
+ * violation the DAG algorithm does, and more.</p>
+ */
+class ZoneAnalyst implements Analyst {
+  private static final Logger logger = LoggerFactory.getLogger(ZoneAnalyst.class);
+
+  /**
+   * The cluster of a value, with its zone
+   */
+  static class Zone {
+    final RPCEntry write;
+    RPCEntry firstEnded;
+    RPCEntry lastStarted;
+
+    Zone(RPCEntry write) {
+      this.write = write;
+      firstEnded = lastStarted = write;
+    }
+
+    void add(RPCEntry read) {
+      if (read.end < firstEnded.end) { firstEnded = read; }
+      if (read.start > lastStarted.start) { lastStarted = read; }
+    }
+
+    boolean isForward() {
+      return firstEnded.end < lastStarted.start;
+    }
+
+    long low() {
+      return Math.min(firstEnded.end, lastStarted.start);
+    }
+
+    long high() {
+      return Math.max(firstEnded.end, lastStarted.start);
+    }
+  }
+
+  private final List<RPCEntry> entries = new ArrayList<>();
+
+  @Override
+  public void addEntry(RPCEntry entry) {
+    entries.add(entry);
+  }
+
+  /**
+   * @return a read of a value never written, a read and the write it ended before, or the
+   *         entries bounding two conflicting zones; empty if the history is atomic
+   */
+  @Override
+  public List<RPCEntry> analyze() {
+    Map<String, Zone> zones = new HashMap<>();
+    for (RPCEntry entry : entries) {
+      if (!entry.isRead) { zones.put(entry.value, new Zone(entry)); }
+    }
+    for (RPCEntry entry : entries) {
+      if (!entry.isRead) { continue; }
+      Zone zone = zones.get(entry.value);
+      if (zone == null) {
+        logger.error("Read value {} with no dictator!", entry.value);
+        return Collections.singletonList(entry);
+      }
+      if (entry.happenBefore(zone.write)) { return Arrays.asList(entry, zone.write); }
+      zone.add(entry);
+    }
+
+    List<Zone> forward = new ArrayList<>();
+    List<Zone> backward = new ArrayList<>();
+    for (Zone zone : zones.values()) { (zone.isForward() ? forward : backward).add(zone); }
+    forward.sort(Comparator.comparingLong(Zone::low));
+
+    long[] forwardLows = new long[forward.size()];
+    for (int i = 0; i < forward.size(); i++) {
+      forwardLows[i] = forward.get(i).low();
+      if (i > 0 && forward.get(i - 1).high() > forwardLows[i]) { return witness(forward.get(i - 1), forward.get(i)); }
+    }
+    // forward zones are disjoint by now, so only the last one starting before a backward
+    // zone may contain it
+    for (Zone zone : backward) {
+      int i = Arrays.binarySearch(forwardLows, zone.low());
+      int containing = (i >= 0 ? i : -i - 1) - 1;
+      if (containing >= 0 && forward.get(containing).high() > zone.high()) { return witness(forward.get(containing), zone); }
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * @return the entries bounding two conflicting zones, and their writes, by start
+   */
+  static List<RPCEntry> witness(Zone one, Zone other) {
+    Set<RPCEntry> witness = new LinkedHashSet<>(Arrays.asList(
+      one.write, one.firstEnded, one.lastStarted, other.write, other.firstEnded, other.lastStarted));
+    List<RPCEntry> ordered = new ArrayList<>(witness);
+    ordered.sort(Comparator.comparingLong(entry -> entry.start));
+    return ordered;
+  }
+}
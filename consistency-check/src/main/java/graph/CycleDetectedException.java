@@ -1,7 +1,33 @@
 package graph;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Indicating a cycle is detected in a DAG
  */
 public class CycleDetectedException extends RuntimeException {
+  private static final long serialVersionUID = 1L;
+
+  private final List<?> cycle;
+
+  public CycleDetectedException() {
+    this(Collections.emptyList());
+  }
+
+  /**
+   * @param cycle the values of the vertices on the cycle, each preceding the next and the
+   *              last preceding the first; copied, so later changes to it are not seen
+   */
+  public CycleDetectedException(List<?> cycle) {
+    this.cycle = Collections.unmodifiableList(new ArrayList<>(cycle));
+  }
+
+  /**
+   * @return the values of the vertices on the cycle, empty if unknown; unmodifiable
+   */
+  public List<?> getCycle() {
+    return cycle;
+  }
 }
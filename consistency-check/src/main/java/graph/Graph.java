@@ -110,32 +110,47 @@ public class Graph<T> {
     return DepthFirstTraversal(start, visitor, null);
   }
 
+  /**
+   * Iterative, the path from the start being kept on an explicit stack along with the
+   * iterator over the neighbours of each of its vertices, so that any depth is traversed
+   */
   private <R> R DFSIterating(Map<graph.Vertex<T>, VisitStatus> visitStatusMap,
                              VertexVisitor<T, R> visitor,
                              VertexVisitor<T, R> afterDone,
                              graph.Vertex<T> vertex) {
-    visitStatusMap.put(vertex, VisitStatus.Visited);
-    if (visitor != null) {
-      R result = visitor.visit(visitStatusMap, vertex);
-      if (result != null) {
-        return result;
-      }
-    }
-    for (graph.Vertex<T> neighbour : vertex.neighbours()) {
-      if (visitStatusMap.get(neighbour) != VisitStatus.Done) {
+    List<graph.Vertex<T>> path = new ArrayList<>();
+    List<Iterator<graph.Vertex<T>>> neighbours = new ArrayList<>();
+    R result = enter(visitStatusMap, visitor, vertex, path, neighbours);
+    while (result == null && !path.isEmpty()) {
+      int top = path.size() - 1;
+      if (neighbours.get(top).hasNext()) {
+        graph.Vertex<T> neighbour = neighbours.get(top).next();
         if (visitStatusMap.get(neighbour) == VisitStatus.Visited) {
-          LoggerFactory.getLogger(Graph.class).debug("backward {} => {}", vertex.getValue(), neighbour.getValue());
-          throw new CycleDetectedException();
-        } else {
-          R result = DFSIterating(visitStatusMap, visitor, afterDone, neighbour);
-          if (result != null) {
-            return result;
-          }
+          LoggerFactory.getLogger(Graph.class).debug("backward {} => {}", path.get(top).getValue(), neighbour.getValue());
+          List<T> cycle = new ArrayList<>();
+          for (graph.Vertex<T> v : path.subList(path.indexOf(neighbour), path.size())) { cycle.add(v.getValue()); }
+          throw new CycleDetectedException(cycle);
+        } else if (visitStatusMap.get(neighbour) == null) {
+          result = enter(visitStatusMap, visitor, neighbour, path, neighbours);
         }
+      } else {
+        graph.Vertex<T> done = path.remove(top);
+        neighbours.remove(top);
+        visitStatusMap.put(done, VisitStatus.Done);
+        if (afterDone != null) { afterDone.visit(visitStatusMap, done); }
       }
     }
-    visitStatusMap.put(vertex, VisitStatus.Done);
-    if (afterDone != null) { afterDone.visit(visitStatusMap, vertex); }
-    return null;
+    return result;
+  }
+
+  private <R> R enter(Map<graph.Vertex<T>, VisitStatus> visitStatusMap,
+                      VertexVisitor<T, R> visitor,
+                      graph.Vertex<T> vertex,
+                      List<graph.Vertex<T>> path,
+                      List<Iterator<graph.Vertex<T>>> neighbours) {
+    visitStatusMap.put(vertex, VisitStatus.Visited);
+    path.add(vertex);
+    neighbours.add(vertex.neighbours().iterator());
+    return visitor == null ? null : visitor.visit(visitStatusMap, vertex);
   }
 }
@@ -0,0 +1,227 @@
+package graph;
+
+import java.util.Arrays;
+
+/**
+ * <p>A directed graph over the dense vertices 0 to n - 1, held in primitive arrays so that
+ * graphs of millions of vertices fit in a normal heap. Compacted edges are stored as
+ * compressed sparse rows: the targets of vertex v are {@code targets[offsets[v]]} up to
+ * {@code targets[offsets[v + 1]]}, in increasing order and without duplicates.</p>
+ *
+ * <p>Added edges are buffered, packed two to a long, and only become visible to traversals
+ * at the next {@link #compact()}. A full buffer sorts and deduplicates itself before it
+ * grows, so adding the same edge many times costs no memory.</p>
+ */
+public class IntGraph {
+
+  /**
+   * Invoked for each traversed vertex
+   */
+  @FunctionalInterface
+  public interface VertexVisitor {
+    void visit(int vertex);
+  }
+
+  private static final byte unvisited = 0, visited = 1, done = 2;
+
+  private final int vertexCount;
+
+  private int[] offsets;
+
+  private int[] targets = new int[0];
+
+  /** added edges, source in the high half */
+  private long[] pending = new long[16];
+
+  private int pendingCount = 0;
+
+  /** the visit status of every vertex, unvisited between traversals */
+  private final byte[] status;
+
+  /** the vertices a traversal has marked, to reset them after it */
+  private int[] touched = new int[16];
+
+  private int touchedCount = 0;
+
+  /** the stack of a traversal: the vertices on the path, and the next edge of each */
+  private int[] path, nextEdges;
+
+  public IntGraph(int vertexCount) {
+    this.vertexCount = vertexCount;
+    offsets = new int[vertexCount + 1];
+    status = new byte[vertexCount];
+  }
+
+  public int vertexCount() {
+    return vertexCount;
+  }
+
+  /**
+   * @return the number of compacted edges
+   */
+  public int edgeCount() {
+    return targets.length;
+  }
+
+  public void addEdge(int from, int to) {
+    if (pendingCount == pending.length) {
+      pendingCount = sortUnique(pending, pendingCount);
+      if (pendingCount > pending.length / 2) { pending = Arrays.copyOf(pending, pending.length * 2); }
+    }
+    pending[pendingCount++] = (long) from << 32 | to;
+  }
+
+  /**
+   * Merge the edges added since the last compaction into the rows
+   */
+  public void compact() {
+    if (pendingCount == 0) { return; }
+    int count = sortUnique(pending, pendingCount);
+    int[] merged = new int[targets.length + count];
+    int[] mergedOffsets = new int[vertexCount + 1];
+    int size = 0;
+    int next = 0;
+    for (int v = 0; v < vertexCount; v++) {
+      mergedOffsets[v] = size;
+      int i = offsets[v];
+      int end = offsets[v + 1];
+      while (i < end || (next < count && (int) (pending[next] >>> 32) == v)) {
+        int target;
+        if (next < count && (int) (pending[next] >>> 32) == v
+          && (i == end || (int) pending[next] <= targets[i])) {
+          target = (int) pending[next++];
+          if (i < end && targets[i] == target) { i++; }
+        } else {
+          target = targets[i++];
+        }
+        merged[size++] = target;
+      }
+    }
+    mergedOffsets[vertexCount] = size;
+    targets = size == merged.length ? merged : Arrays.copyOf(merged, size);
+    offsets = mergedOffsets;
+    pending = new long[16];
+    pendingCount = 0;
+  }
+
+  /**
+   * @return the index of the first compacted edge from the vertex
+   */
+  public int edgeStart(int vertex) {
+    return offsets[vertex];
+  }
+
+  /**
+   * @return the index after the last compacted edge from the vertex
+   */
+  public int edgeEnd(int vertex) {
+    return offsets[vertex + 1];
+  }
+
+  public int target(int edge) {
+    return targets[edge];
+  }
+
+  /**
+   * Look for a cycle by a depth first traversal over the compacted edges, in time linear in
+   * the size of the graph and whatever its depth
+   *
+   * @return the vertices of a cycle, each having an edge to the next and the last to the
+   *         first, or null if the graph is acyclic
+   */
+  public int[] findCycle() {
+    try {
+      for (int v = 0; v < vertexCount; v++) {
+        if (status[v] == unvisited) {
+          int[] cycle = traverse(v, null, null, true);
+          if (cycle != null) { return cycle; }
+        }
+      }
+      return null;
+    } finally {
+      reset();
+    }
+  }
+
+  /**
+   * Traverse the vertices reachable from the start depth first, over the compacted edges.
+   * Edges closing a cycle are skipped: use {@link #findCycle()} to look for cycles.
+   *
+   * @param visitor invoked for each vertex when it is reached, may be null
+   * @param afterDone invoked for each vertex once its descendants are done, may be null
+   */
+  public void depthFirstTraversal(int start, VertexVisitor visitor, VertexVisitor afterDone) {
+    try {
+      traverse(start, visitor, afterDone, false);
+    } finally {
+      reset();
+    }
+  }
+
+  /**
+   * Iterative, the path from the start being kept on an explicit stack along with the next
+   * edge to follow from each of its vertices
+   *
+   * @return the cycle closed by the first edge back into the path if detecting, else null
+   */
+  private int[] traverse(int start, VertexVisitor visitor, VertexVisitor afterDone, boolean detecting) {
+    if (path == null) {
+      path = new int[vertexCount];
+      nextEdges = new int[vertexCount];
+    }
+    int depth = 0;
+    mark(start);
+    if (visitor != null) { visitor.visit(start); }
+    path[depth] = start;
+    nextEdges[depth++] = offsets[start];
+    while (depth > 0) {
+      int vertex = path[depth - 1];
+      int edge = nextEdges[depth - 1];
+      if (edge < offsets[vertex + 1]) {
+        nextEdges[depth - 1] = edge + 1;
+        int neighbour = targets[edge];
+        if (status[neighbour] == unvisited) {
+          mark(neighbour);
+          if (visitor != null) { visitor.visit(neighbour); }
+          path[depth] = neighbour;
+          nextEdges[depth++] = offsets[neighbour];
+        } else if (status[neighbour] == visited && detecting) {
+          int from = depth - 1;
+          while (path[from] != neighbour) { from--; }
+          return Arrays.copyOfRange(path, from, depth);
+        }
+      } else {
+        status[vertex] = done;
+        if (afterDone != null) { afterDone.visit(vertex); }
+        depth--;
+      }
+    }
+    return null;
+  }
+
+  private void mark(int vertex) {
+    if (touchedCount == touched.length) { touched = Arrays.copyOf(touched, touched.length * 2); }
+    touched[touchedCount++] = vertex;
+    status[vertex] = visited;
+  }
+
+  /**
+   * Clear the marks of the last traversal, in time proportional to the vertices it reached
+   */
+  private void reset() {
+    for (int i = 0; i < touchedCount; i++) { status[touched[i]] = unvisited; }
+    touchedCount = 0;
+  }
+
+  /**
+   * @return the number of distinct values, sorted at the head of the array
+   */
+  private static int sortUnique(long[] values, int count) {
+    Arrays.sort(values, 0, count);
+    int unique = 0;
+    for (int i = 0; i < count; i++) {
+      if (unique == 0 || values[i] != values[unique - 1]) { values[unique++] = values[i]; }
+    }
+    return unique;
+  }
+}
@@ -4,22 +4,35 @@ import argparse.ArgumentParseException;
 import argparse.ArgumentParser;
 import argparse.argument.ArgumentConsumer;
 import argparse.argument.FieldSetter;
+import argparse.argument.ListSetter;
 import argparse.option.ExclusiveOptionGroup;
 import argparse.option.SingleOption;
 import argparse.type.TypeBuilderRegistry;
+import kvclient.ConnectionPool;
+import kvclient.Connector;
+import kvclient.PartitionedClient;
+import kvstore.ErrorCode;
+import kvstore.KVStore;
+import kvstore.KeyValue;
+import kvstore.OperationStats;
 import kvstore.Result;
+import kvstore.ScanPage;
+import kvstore.ServerStats;
 import org.apache.thrift.TException;
-import org.apache.thrift.protocol.TBinaryProtocol;
-import org.apache.thrift.protocol.TProtocol;
-import org.apache.thrift.transport.TSocket;
-import org.apache.thrift.transport.TTransport;
 
+import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
+import static java.util.Collections.singletonList;
 import static kvstore.ErrorCode.kError;
+import static kvstore.ErrorCode.kMismatch;
 import static kvstore.ErrorCode.kSuccess;
 import static kvstore.KVStore.*;
 
@@ -30,9 +43,12 @@ public class KVStoreClient {
 
   @FunctionalInterface
   private interface ResultQuery {
-    Result apply(Client client) throws TException;
+    List<Result> apply(Iface client) throws TException;
   }
 
+  /** the pairs asked per kvscan page, as many as servers return */
+  private static final int scanPageSize = 1000;
+
   private static final ArgumentParser parser = new ArgumentParser();
 
   private static final
@@ -46,12 +62,32 @@ public class KVStoreClient {
       new FieldSetter("operation").set(o, query);
     };
 
-    FieldSetter serverSetter = new FieldSetter("server",
-      o -> ((URI)o).getHost() != null && ((URI)o).getPort() != -1);
+    ListSetter serverSetter = new ListSetter("servers", URI.class,
+      o -> ((List<?>)o).stream().allMatch(uri -> ((URI)uri).getHost() != null && ((URI)uri).getPort() != -1));
 
     parser.addOption(new SingleOption("-server", serverSetter))
-      .argPlaceholder("HOST:PORT")
-      .description("Specify the location of the server");
+      .argPlaceholder("HOST:PORT...")
+      .description("Specify the location of the server, or of every node of a partitioned cluster");
+
+    parser.addOption(new SingleOption("-protocol", new FieldSetter("protocol")))
+      .optional(true)
+      .argPlaceholder("binary|compact")
+      .description("Set the protocol, binary by default; it must match the server's");
+
+    parser.addOption(new SingleOption("-transport", new FieldSetter("transport")))
+      .optional(true)
+      .argPlaceholder("buffered|framed")
+      .description("Set the transport, buffered by default; framed is required by a server in selector mode");
+
+    parser.addOption(new SingleOption("-frame", new FieldSetter("maxFrameBytes", o -> ((int)o) > 0)))
+      .optional(true)
+      .argPlaceholder("BYTES")
+      .description("Set the largest frame accepted with framed transport");
+
+    parser.addOption(new SingleOption("-ttl", new FieldSetter("ttlMillis", o -> ((long)o) > 0)))
+      .optional(true)
+      .argPlaceholder("MILLIS")
+      .description("Expire the pairs of -set and -mset after MILLIS milliseconds");
 
     parser.addOption(
       new ExclusiveOptionGroup("operation")
@@ -66,21 +102,85 @@ public class KVStoreClient {
         .addOption(new SingleOption("-del", new FieldSetter("key"), opSetter.apply("-del")))
         .argPlaceholder("KEY")
         .description("Delete the KEY-value pair from the store")
+
+        .addOption(new SingleOption("-cas", new FieldSetter("key"), new FieldSetter("expected"), new FieldSetter("value"),
+          opSetter.apply("-cas")))
+        .argPlaceholder("KEY EXPECTED VALUE")
+        .description("Set the KEY to VALUE only if it holds EXPECTED, otherwise print its current value")
+
+        .addOption(new SingleOption("-incr", new FieldSetter("key"), new FieldSetter("delta"), opSetter.apply("-incr")))
+        .argPlaceholder("KEY DELTA")
+        .description("Add DELTA to the integer value of the KEY, 0 if absent, and print the result")
+
+        .addOption(new SingleOption("-mset",
+          new ListSetter("keys", String.class, o -> ((List<?>)o).size() % 2 == 0), opSetter.apply("-mset")))
+        .argPlaceholder("KEY VALUE [KEY VALUE]...")
+        .description("Set all the KEY-VALUE pairs in one request")
+
+        .addOption(new SingleOption("-mget", new ListSetter("keys", String.class), opSetter.apply("-mget")))
+        .argPlaceholder("KEY...")
+        .description("Get the values of all the KEYs in one request")
+
+        .addOption(new SingleOption("-mdel", new ListSetter("keys", String.class), opSetter.apply("-mdel")))
+        .argPlaceholder("KEY...")
+        .description("Delete all the KEYs in one request")
+
+        .addOption(new SingleOption("-scan", new FieldSetter("key"), opSetter.apply("-scan")))
+        .argPlaceholder("PREFIX")
+        .description("List the KEY-VALUE pairs whose keys start with PREFIX, in key order, page by page")
+
+        .addOption(new SingleOption("-stats", opSetter.apply("-stats")))
+        .description("Show the request counts and latency percentiles of every server")
     );
 
-    operations.put("-get", o -> client -> client.kvget(o.key));
-    operations.put("-set", o -> client -> client.kvset(o.key, o.value));
-    operations.put("-del", o -> client -> client.kvdelete(o.key));
+    operations.put("-get", o -> client -> singletonList(client.kvget(o.key)));
+    operations.put("-set", o -> client -> singletonList(client.kvset(o.key, o.value, o.ttlMillis)));
+    operations.put("-del", o -> client -> singletonList(client.kvdelete(o.key)));
+    operations.put("-cas", o -> client -> singletonList(client.kvcas(o.key, o.expected, o.value)));
+    operations.put("-incr", o -> client -> singletonList(client.kvincr(o.key, o.delta)));
+    operations.put("-mget", o -> client -> client.kvmultiget(o.keys));
+    operations.put("-mset", o -> client -> client.kvmultiset(pairs(o.keys, o.ttlMillis)));
+    operations.put("-mdel", o -> client -> client.kvmultidelete(o.keys));
+    operations.put("-scan", o -> client -> o.printScan(client));
+    operations.put("-stats", o -> client -> o.printStats());
+  }
+
+  private static List<KeyValue> pairs(List<String> keysAndValues, long ttlMillis) {
+    List<KeyValue> pairs = new ArrayList<>();
+    for (int i = 0; i + 1 < keysAndValues.size(); i += 2) {
+      KeyValue pair = new KeyValue(keysAndValues.get(i), keysAndValues.get(i + 1));
+      if (ttlMillis > 0) { pair.setTtlMillis(ttlMillis); }
+      pairs.add(pair);
+    }
+    return pairs;
   }
 
-  private URI server;
+  private List<URI> servers;
+
+  private Connector.Protocol protocol = Connector.Protocol.binary;
+
+  private Connector.Transport transport = Connector.Transport.buffered;
+
+  private int maxFrameBytes = Connector.defaultMaxFrameBytes;
+
+  private long ttlMillis = 0;
 
   private String key;
 
   private String value;
 
+  private String expected;
+
+  private long delta;
+
+  private List<String> keys;
+
   private ResultQuery operation;
 
+  private ConnectionPool pool;
+
+  private List<InetSocketAddress> nodes;
+
   public static void main(String[] args) {
     new KVStoreClient().doMain(args);
   }
@@ -94,18 +194,15 @@ public class KVStoreClient {
       System.exit(-1);
     }
 
-    try {
-      final int milliTimeout = 3000;
-      TTransport transport = new TSocket(server.getHost(), server.getPort(), milliTimeout);
-      transport.open();
-
-      TProtocol protocol = new TBinaryProtocol(transport);
-      Client client = new Client(protocol);
+    pool = new ConnectionPool(new Connector().protocol(protocol).transport(transport).maxFrameBytes(maxFrameBytes)).maxActive(1);
+    nodes = servers.stream()
+      .map(uri -> InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort()))
+      .collect(Collectors.toList());
+    try (PartitionedClient client = new PartitionedClient(pool, nodes)) {
+      List<Result> results = operation.apply(client);
+      pool.close();
+      printResults(results);
 
-      Result result = operation.apply(client);
-      printResult(result);
-
-      transport.close();
     } catch (TException x) {
       System.err.println("ERROR: " + x.getMessage());
       x.printStackTrace();
@@ -114,16 +211,64 @@ public class KVStoreClient {
 
   }
 
-  private void printResult(Result result) {
+  /**
+   * @return the failed result if any, the pairs are printed as they are received
+   */
+  private List<Result> printScan(Iface client) throws TException {
+    String end = prefixEnd(key);
+    String cursor = null;
+    do {
+      ScanPage page = client.kvscan(key, end, scanPageSize, cursor);
+      if (page.result.error != kSuccess) { return singletonList(page.result); }
+      for (KeyValue pair : page.pairs) { System.out.println(pair.key + "\t" + pair.value); }
+      cursor = page.cursor;
+    } while (cursor != null);
+    return Collections.emptyList();
+  }
+
+  /**
+   * @return the lowest key greater than every key starting with the prefix, null if none
+   */
+  private static String prefixEnd(String prefix) {
+    int end = prefix.length();
+    while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) { end--; }
+    if (end == 0) { return null; }
+    return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+  }
+
+  /**
+   * @return no results, the statistics of each server are printed as a table
+   */
+  private List<Result> printStats() throws TException {
+    for (InetSocketAddress node : nodes) {
+      ServerStats stats = pool.call(node, KVStore.Client::kvstats);
+      System.out.printf("%s:%d up %d s%n", node.getHostString(), node.getPort(), stats.uptimeMillis / 1000);
+      System.out.printf("%-14s %12s %10s %8s %8s %10s %10s %10s %10s%n",
+        "operation", "count", "misses", "errors", "inflight", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+      for (OperationStats op : stats.operations) {
+        System.out.printf("%-14s %12d %10d %8d %8d %10.1f %10.1f %10.1f %10.1f%n",
+          op.operation, op.count, op.misses, op.errors, op.inFlight,
+          op.p50Nanos / 1000.0, op.p99Nanos / 1000.0, op.p999Nanos / 1000.0, op.maxNanos / 1000.0);
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  private void printResults(List<Result> results) {
+    ErrorCode firstError = kSuccess;
 
-    if (result.error == kSuccess) {
-      if (!result.value.isEmpty()) { System.out.println(result.value); }
+    for (Result result : results) {
+      if (result.error == kSuccess) {
+        if (!result.value.isEmpty()) { System.out.println(result.value); }
 
-    } else {
-      System.err.println(result.errortext);
-      System.exit(result.error.ordinal());
+      } else {
+        System.err.println(result.errortext);
+        if (result.error == kMismatch) { System.out.println(result.value); }
+        if (firstError == kSuccess) { firstError = result.error; }
+      }
     }
 
+    if (firstError != kSuccess) { System.exit(firstError.ordinal()); }
   }
 
 }
@@ -0,0 +1,128 @@
+package kvclient;
+
+import kvstore.Result;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>A bounded cache of leased read results, evicting with the CLOCK algorithm: a hand
+ * sweeps the slots in a circle, sparing once every entry read since its last pass, so
+ * that hot keys stay cached at the cost of one bit per hit.</p>
+ *
+ * <p>Entries expire with their lease. Every invalidation bumps an epoch, and a result is
+ * only cached if no invalidation arrived since its read was sent, since it may predate
+ * the write being invalidated. Thread-safe.</p>
+ */
+final class ClockCache {
+
+  private final String[] keys;
+
+  private final Result[] results;
+
+  private final long[] expiries;
+
+  private final boolean[] referenced;
+
+  private final Map<String, Integer> slots;
+
+  /** slots 0 to size - 1 are taken */
+  private int size = 0;
+
+  private int hand = 0;
+
+  private long epoch = 0;
+
+  ClockCache(int capacity) {
+    if (capacity <= 0) { throw new IllegalArgumentException("capacity must be positive"); }
+    keys = new String[capacity];
+    results = new Result[capacity];
+    expiries = new long[capacity];
+    referenced = new boolean[capacity];
+    slots = new HashMap<>(capacity * 2);
+  }
+
+  /**
+   * @return the cached result under an unexpired lease, null if none
+   */
+  synchronized Result get(String key, long nowNanos) {
+    Integer slot = slots.get(key);
+    if (slot == null) { return null; }
+    if (expiries[slot] - nowNanos <= 0) {
+      evict(slot);
+      return null;
+    }
+    referenced[slot] = true;
+    return results[slot];
+  }
+
+  synchronized long epoch() {
+    return epoch;
+  }
+
+  /**
+   * Cache a result read with a lease, unless an invalidation arrived since the epoch taken
+   * before sending the read
+   */
+  synchronized void put(String key, Result result, long expiryNanos, long readEpoch) {
+    if (readEpoch != epoch) { return; }
+    Integer slot = slots.get(key);
+    if (slot == null) {
+      slot = size < keys.length ? size++ : victim();
+      keys[slot] = key;
+      slots.put(key, slot);
+    }
+    results[slot] = result;
+    expiries[slot] = expiryNanos;
+    referenced[slot] = false;
+  }
+
+  synchronized void invalidate(Iterable<String> invalidated) {
+    epoch++;
+    for (String key : invalidated) {
+      Integer slot = slots.get(key);
+      if (slot != null) { evict(slot); }
+    }
+  }
+
+  synchronized void clear() {
+    epoch++;
+    while (size > 0) { evict(0); }
+  }
+
+  synchronized int size() {
+    return size;
+  }
+
+  /**
+   * @return a slot emptied of its entry, found by advancing the hand
+   */
+  private int victim() {
+    while (referenced[hand]) {
+      referenced[hand] = false;
+      hand = (hand + 1) % size;
+    }
+    int slot = hand;
+    slots.remove(keys[slot]);
+    hand = (hand + 1) % size;
+    return slot;
+  }
+
+  /**
+   * Move the last taken slot into the evicted one, keeping taken slots contiguous
+   */
+  private void evict(int slot) {
+    slots.remove(keys[slot]);
+    int last = --size;
+    if (slot != last) {
+      keys[slot] = keys[last];
+      results[slot] = results[last];
+      expiries[slot] = expiries[last];
+      referenced[slot] = referenced[last];
+      slots.put(keys[slot], slot);
+    }
+    keys[last] = null;
+    results[last] = null;
+    if (hand >= size) { hand = 0; }
+  }
+}
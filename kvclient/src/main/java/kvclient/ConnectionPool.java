@@ -0,0 +1,217 @@
+package kvclient;
+
+import kvstore.KVStore;
+import org.apache.thrift.TException;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>A bounded pool of KVStore connections, kept per endpoint so that short-lived
+ * operations do not pay the TCP setup cost. Usage:</p>
+ *
+ * <pre>
+ *   ConnectionPool pool = new ConnectionPool(new Connector().framed(true)).maxActive(8);
+ *   Result result = pool.call(endpoint, client -&gt; client.kvget("key"));
+ * </pre>
+ *
+ * <p>Per endpoint, at most {@code maxActive} connections are borrowed at a time and at
+ * most {@code maxIdle} are kept idle, while a background thread keeps {@code minIdle}
+ * of them ready. A connection idle for longer than {@code validateAfterIdle} is probed
+ * on borrow and replaced if the server has dropped it. Settings are meant to be
+ * configured before the first borrow.</p>
+ */
+public class ConnectionPool implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+  @FunctionalInterface
+  public interface Call<R> {
+    R apply(KVStore.Client client) throws TException;
+  }
+
+  private class Endpoint {
+    final InetSocketAddress address;
+    final Semaphore active = new Semaphore(maxActive);
+    final Deque<PooledConnection> idle = new ArrayDeque<>(); // guarded by itself
+
+    Endpoint(InetSocketAddress address) {
+      this.address = address;
+    }
+
+    PooledConnection pollIdle() {
+      synchronized (idle) { return idle.pollFirst(); }
+    }
+
+    int idleCount() {
+      synchronized (idle) { return idle.size(); }
+    }
+  }
+
+  private final Connector connector;
+
+  private final Map<InetSocketAddress, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+  private final ScheduledExecutorService maintainer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "connection-pool-maintainer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private int minIdle = 0;
+
+  private int maxIdle = 8;
+
+  private int maxActive = 8;
+
+  private long borrowTimeoutMillis = 3000;
+
+  private long validateAfterIdleMillis = 5000;
+
+  private volatile boolean closed = false;
+
+  public ConnectionPool(Connector connector) {
+    this.connector = connector;
+    maintainer.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.SECONDS);
+  }
+
+  public ConnectionPool minIdle(int count) {
+    minIdle = count;
+    return this;
+  }
+
+  public ConnectionPool maxIdle(int count) {
+    maxIdle = count;
+    return this;
+  }
+
+  public ConnectionPool maxActive(int count) {
+    maxActive = count;
+    return this;
+  }
+
+  public ConnectionPool borrowTimeout(long millis) {
+    borrowTimeoutMillis = millis;
+    return this;
+  }
+
+  public ConnectionPool validateAfterIdle(long millis) {
+    validateAfterIdleMillis = millis;
+    return this;
+  }
+
+  public Connector connector() {
+    return connector;
+  }
+
+  /**
+   * Borrow a connection, waiting up to the borrow timeout while all of them are in use.
+   * The connection must be closed to return it.
+   */
+  public PooledConnection borrow(InetSocketAddress address) throws TTransportException {
+    if (closed) { throw new TTransportException(TTransportException.NOT_OPEN, "pool is closed"); }
+    Endpoint endpoint = endpoints.computeIfAbsent(address, Endpoint::new);
+    try {
+      if (!endpoint.active.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        throw new TTransportException(TTransportException.TIMED_OUT, "no connection available to " + address);
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new TTransportException(TTransportException.UNKNOWN, "interrupted while borrowing a connection");
+    }
+
+    try {
+      PooledConnection connection;
+      while ((connection = endpoint.pollIdle()) != null) {
+        if (connection.isValid() && (connection.idleMillis() < validateAfterIdleMillis || connection.probe())) {
+          return connection;
+        }
+        logger.debug("Discarded a stale connection to {}", address);
+        connection.destroy();
+      }
+      return connect(endpoint);
+
+    } catch (TTransportException | RuntimeException e) {
+      endpoint.active.release();
+      throw e;
+    }
+  }
+
+  /**
+   * Run a call on a borrowed connection. The connection is discarded if the call fails.
+   */
+  public <R> R call(InetSocketAddress address, Call<R> call) throws TException {
+    PooledConnection connection = borrow(address);
+    try {
+      return call.apply(connection.client());
+    } catch (TException | RuntimeException e) {
+      connection.invalidate();
+      throw e;
+    } finally {
+      connection.close();
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    maintainer.shutdownNow();
+    for (Endpoint endpoint : endpoints.values()) {
+      PooledConnection connection;
+      while ((connection = endpoint.pollIdle()) != null) {
+        connection.destroy();
+      }
+    }
+  }
+
+  void release(PooledConnection connection) {
+    Endpoint endpoint = endpoints.get(connection.endpoint());
+    boolean kept = false;
+    if (connection.isValid()) {
+      synchronized (endpoint.idle) {
+        if (!closed && endpoint.idle.size() < maxIdle) {
+          endpoint.idle.addFirst(connection.reissue());
+          kept = true;
+        }
+      }
+    }
+    if (!kept) { connection.destroy(); }
+    endpoint.active.release();
+  }
+
+  private PooledConnection connect(Endpoint endpoint) throws TTransportException {
+    TSocket socket = connector.socket(endpoint.address);
+    TTransport transport = connector.open(socket);
+    return new PooledConnection(this, endpoint.address, socket, transport);
+  }
+
+  /**
+   * Top up every endpoint to its min idle connections
+   */
+  private void maintain() {
+    for (Endpoint endpoint : endpoints.values()) {
+      while (!closed && endpoint.idleCount() < minIdle) {
+        try {
+          PooledConnection connection = connect(endpoint);
+          synchronized (endpoint.idle) { endpoint.idle.addLast(connection); }
+        } catch (TTransportException e) {
+          logger.warn("Failed to open idle connection to {}: {}", endpoint.address, e.getMessage());
+          break;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,127 @@
+package kvclient;
+
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Opens transports to KVStore servers with a common set of socket settings.
+ * Settings are meant to be configured before the first connection is opened.
+ *
+ * <p>Thrift does not negotiate the protocol or the transport: both ends of a connection
+ * must be configured alike.</p>
+ */
+public class Connector {
+
+  /**
+   * How messages are encoded.
+   * <ul>
+   *   <li>binary: fixed-width integers and field headers</li>
+   *   <li>compact: variable-length integers and field headers packed with their type, about
+   *   half the bytes for the small messages of KVStore</li>
+   * </ul>
+   */
+  public enum Protocol {
+    binary(new TBinaryProtocol.Factory()),
+    compact(new TCompactProtocol.Factory());
+
+    private final TProtocolFactory factory;
+
+    Protocol(TProtocolFactory factory) {
+      this.factory = factory;
+    }
+
+    public TProtocolFactory factory() {
+      return factory;
+    }
+  }
+
+  /**
+   * How messages are written to the socket.
+   * <ul>
+   *   <li>buffered: streamed through the socket buffers, possibly in several writes</li>
+   *   <li>framed: each message is buffered whole and written at once behind its length,
+   *   required by servers in selector mode</li>
+   * </ul>
+   */
+  public enum Transport { buffered, framed }
+
+  /** the largest frame accepted by default, as in thrift */
+  public static final int defaultMaxFrameBytes = 16384000;
+
+  private int connectTimeoutMillis = 3000;
+
+  private int readTimeoutMillis = 3000;
+
+  private boolean framed = false;
+
+  private int maxFrameBytes = defaultMaxFrameBytes;
+
+  private TProtocolFactory protocolFactory = Protocol.binary.factory();
+
+  public Connector connectTimeout(int millis) {
+    connectTimeoutMillis = millis;
+    return this;
+  }
+
+  public Connector readTimeout(int millis) {
+    readTimeoutMillis = millis;
+    return this;
+  }
+
+  /**
+   * Use framed transport, required by servers in selector mode
+   */
+  public Connector framed(boolean isFramed) {
+    framed = isFramed;
+    return this;
+  }
+
+  public Connector transport(Transport transport) {
+    return framed(transport == Transport.framed);
+  }
+
+  /**
+   * Set the largest frame read with framed transport; larger responses fail the call
+   */
+  public Connector maxFrameBytes(int bytes) {
+    maxFrameBytes = bytes;
+    return this;
+  }
+
+  public Connector protocol(Protocol protocol) {
+    return protocolFactory(protocol.factory());
+  }
+
+  public Connector protocolFactory(TProtocolFactory factory) {
+    protocolFactory = factory;
+    return this;
+  }
+
+  public TProtocolFactory protocolFactory() {
+    return protocolFactory;
+  }
+
+  /**
+   * @return an opened transport
+   */
+  public TTransport open(InetSocketAddress endpoint) throws TTransportException {
+    return open(socket(endpoint));
+  }
+
+  TSocket socket(InetSocketAddress endpoint) {
+    return new TSocket(endpoint.getHostString(), endpoint.getPort(), readTimeoutMillis, connectTimeoutMillis);
+  }
+
+  TTransport open(TSocket socket) throws TTransportException {
+    TTransport transport = framed ? new TFramedTransport(socket, maxFrameBytes) : socket;
+    transport.open();
+    return transport;
+  }
+}
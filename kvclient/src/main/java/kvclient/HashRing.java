@@ -0,0 +1,89 @@
+package kvclient;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>A consistent-hash ring assigning keys to server nodes. Each node is placed at a number
+ * of virtual points on a 64-bit ring and owns the keys hashing up to each of its points, so
+ * the key space spreads evenly and adding or removing a node only moves about 1/N of the
+ * keys.</p>
+ *
+ * <p>Points are derived from {@code HOST:PORT} with a fixed hash function, so every client
+ * given the same nodes routes keys the same way.</p>
+ */
+public class HashRing {
+
+  public static final int defaultVirtualNodes = 160;
+
+  private final List<InetSocketAddress> nodes;
+
+  /** sorted */
+  private final long[] points;
+
+  /** the node owning each point */
+  private final InetSocketAddress[] owners;
+
+  public HashRing(List<InetSocketAddress> nodes) {
+    this(nodes, defaultVirtualNodes);
+  }
+
+  public HashRing(List<InetSocketAddress> nodes, int virtualNodes) {
+    if (nodes.isEmpty()) { throw new IllegalArgumentException("a ring needs at least one node"); }
+    this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+
+    int size = nodes.size() * virtualNodes;
+    long[][] placed = new long[size][];
+    for (int n = 0; n < nodes.size(); n++) {
+      InetSocketAddress node = nodes.get(n);
+      String label = node.getHostString() + ":" + node.getPort();
+      for (int v = 0; v < virtualNodes; v++) {
+        placed[n * virtualNodes + v] = new long[] { hash(label + "#" + v), n };
+      }
+    }
+    Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+
+    points = new long[size];
+    owners = new InetSocketAddress[size];
+    for (int i = 0; i < size; i++) {
+      points[i] = placed[i][0];
+      owners[i] = nodes.get((int) placed[i][1]);
+    }
+  }
+
+  /**
+   * @return the node owning the key, the first one for a null key
+   */
+  public InetSocketAddress nodeFor(String key) {
+    if (key == null) { return nodes.get(0); }
+    int index = Arrays.binarySearch(points, hash(key));
+    if (index < 0) { index = -index - 1; }
+    return owners[index == points.length ? 0 : index];
+  }
+
+  public List<InetSocketAddress> nodes() {
+    return nodes;
+  }
+
+  /**
+   * 64-bit FNV-1a over the UTF-8 bytes, finished with the MurmurHash3 mixer so that
+   * similar strings land far apart
+   */
+  static long hash(String s) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : s.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
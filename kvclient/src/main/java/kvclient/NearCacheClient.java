@@ -0,0 +1,211 @@
+package kvclient;
+
+import kvstore.Invalidations;
+import kvstore.KVStore;
+import kvstore.KeyValue;
+import kvstore.LeasedResult;
+import kvstore.LogEntry;
+import kvstore.Result;
+import kvstore.ScanPage;
+import kvstore.ServerStats;
+import kvstore.TaggedValue;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static kvstore.ErrorCode.kError;
+
+/**
+ * <p>A KVStore client keeping a near cache of the keys it reads, so that repeated reads of
+ * hot keys are served locally. Usage:</p>
+ *
+ * <pre>
+ *   NearCacheClient client = new NearCacheClient(pool, server, 1024);
+ *   Result result = client.kvget("key");
+ * </pre>
+ *
+ * <p>Values are read with {@code kvleaseget}, and cached only while the server's lease on
+ * them lasts. Before changing a leased key the server pushes an invalidation, which a
+ * background thread collects with long polls and applies before acknowledging it, or it
+ * waits for the lease to expire. A cached value is thus never served once a newer one is
+ * visible, and reads stay atomic. Against a server granting no leases every call goes to
+ * the server.</p>
+ */
+public class NearCacheClient implements KVStore.Iface, Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(NearCacheClient.class);
+
+  public static final int defaultCapacity = 1024;
+
+  private static final int pollMillis = 1000;
+
+  private final ConnectionPool pool;
+
+  private final InetSocketAddress server;
+
+  private final ClockCache cache;
+
+  private final String holder = UUID.randomUUID().toString();
+
+  private final Thread poller;
+
+  private volatile boolean isPolling = false;
+
+  private volatile boolean isClosed = false;
+
+  /**
+   * @param pool opens the connections, including one kept by the invalidation poller;
+   *             it is not closed with this client
+   * @param capacity the maximum number of cached keys
+   */
+  public NearCacheClient(ConnectionPool pool, InetSocketAddress server, int capacity) {
+    this.pool = pool;
+    this.server = server;
+    cache = new ClockCache(capacity);
+    poller = new Thread(this::pollInvalidations, "near-cache-invalidations-" + server.getPort());
+    poller.setDaemon(true);
+  }
+
+  @Override
+  public Result kvget(String key) throws TException {
+    if (key == null) { return pool.call(server, client -> client.kvget(null)); }
+    long now = System.nanoTime();
+    Result cached = cache.get(key, now);
+    if (cached != null) { return cached; }
+
+    long epoch = cache.epoch();
+    LeasedResult leased = pool.call(server, client -> client.kvleaseget(key, holder));
+    if (leased.leaseMillis > 0 && leased.result.error != kError) {
+      startPolling();
+      cache.put(key, leased.result, now + TimeUnit.MILLISECONDS.toNanos(leased.leaseMillis), epoch);
+    }
+    return leased.result;
+  }
+
+  @Override
+  public Result kvset(String key, String value, long ttlMillis) throws TException {
+    return pool.call(server, client -> client.kvset(key, value, ttlMillis));
+  }
+
+  @Override
+  public Result kvdelete(String key) throws TException {
+    return pool.call(server, client -> client.kvdelete(key));
+  }
+
+  @Override
+  public Result kvcas(String key, String expected, String value) throws TException {
+    return pool.call(server, client -> client.kvcas(key, expected, value));
+  }
+
+  @Override
+  public Result kvincr(String key, long delta) throws TException {
+    return pool.call(server, client -> client.kvincr(key, delta));
+  }
+
+  @Override
+  public List<Result> kvmultiget(List<String> keys) throws TException {
+    return pool.call(server, client -> client.kvmultiget(keys));
+  }
+
+  @Override
+  public List<Result> kvmultiset(List<KeyValue> pairs) throws TException {
+    return pool.call(server, client -> client.kvmultiset(pairs));
+  }
+
+  @Override
+  public List<Result> kvmultidelete(List<String> keys) throws TException {
+    return pool.call(server, client -> client.kvmultidelete(keys));
+  }
+
+  @Override
+  public ScanPage kvscan(String startKey, String endKey, int limit, String cursor) throws TException {
+    return pool.call(server, client -> client.kvscan(startKey, endKey, limit, cursor));
+  }
+
+  @Override
+  public long kvreplicate(List<LogEntry> entries, boolean reset, boolean completesCopy) throws TException {
+    return pool.call(server, client -> client.kvreplicate(entries, reset, completesCopy));
+  }
+
+  @Override
+  public TaggedValue kvtagget(String key) throws TException {
+    return pool.call(server, client -> client.kvtagget(key));
+  }
+
+  @Override
+  public boolean kvtagset(String key, TaggedValue tagged) throws TException {
+    return pool.call(server, client -> client.kvtagset(key, tagged));
+  }
+
+  @Override
+  public LeasedResult kvleaseget(String key, String holder) throws TException {
+    return pool.call(server, client -> client.kvleaseget(key, holder));
+  }
+
+  @Override
+  public Invalidations kvinvalidations(String holder, long acked, int waitMillis) throws TException {
+    return pool.call(server, client -> client.kvinvalidations(holder, acked, waitMillis));
+  }
+
+  @Override
+  public ServerStats kvstats() throws TException {
+    return pool.call(server, KVStore.Client::kvstats);
+  }
+
+  /**
+   * @return the number of cached keys
+   */
+  public int cachedKeys() {
+    return cache.size();
+  }
+
+  @Override
+  public void close() {
+    isClosed = true;
+    poller.interrupt();
+    cache.clear();
+  }
+
+  private synchronized void startPolling() {
+    if (isPolling || isClosed) { return; }
+    isPolling = true;
+    poller.start();
+  }
+
+  /**
+   * Apply invalidations and acknowledge them with the next poll. Failing polls only leave
+   * writes waiting for the leases to expire, here and on the server alike.
+   */
+  private void pollInvalidations() {
+    long acked = 0;
+    boolean isFailing = false;
+    while (!isClosed) {
+      try {
+        long acknowledged = acked;
+        Invalidations invalidations = pool.call(server, client -> client.kvinvalidations(holder, acknowledged, pollMillis));
+        if (!invalidations.keys.isEmpty()) { cache.invalidate(invalidations.keys); }
+        acked = Math.max(acked, invalidations.sequence);
+        if (isFailing) {
+          logger.info("Receiving invalidations from {}:{} again", server.getHostString(), server.getPort());
+          isFailing = false;
+        }
+      } catch (TException e) {
+        if (!isFailing) {
+          logger.warn("Failed to poll invalidations from {}:{}: {}", server.getHostString(), server.getPort(), e.getMessage());
+          isFailing = true;
+        }
+        try {
+          Thread.sleep(pollMillis);
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+    }
+  }
+}
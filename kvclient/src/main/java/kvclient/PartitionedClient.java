@@ -0,0 +1,262 @@
+package kvclient;
+
+import kvstore.Invalidations;
+import kvstore.KVStore;
+import kvstore.KeyValue;
+import kvstore.LeasedResult;
+import kvstore.LogEntry;
+import kvstore.OperationStats;
+import kvstore.Result;
+import kvstore.ScanPage;
+import kvstore.ServerStats;
+import kvstore.TaggedValue;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * <p>A KVStore client over a cluster of independent servers, each holding the part of the
+ * key space a {@link HashRing} assigns to it. Every call is routed to the node owning its
+ * key, over connections borrowed from the pool. Usage:</p>
+ *
+ * <pre>
+ *   PartitionedClient client = new PartitionedClient(pool, Arrays.asList(node1, node2, node3));
+ *   Result result = client.kvget("key");
+ * </pre>
+ *
+ * <p>A batch is split per node and the parts are sent in parallel, so its latency is that of
+ * the slowest node rather than the sum. Results keep the request order.</p>
+ */
+public class PartitionedClient implements KVStore.Iface, Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(PartitionedClient.class);
+
+  @FunctionalInterface
+  private interface Batch<T> {
+    List<Result> apply(KVStore.Client client, List<T> items) throws TException;
+  }
+
+  private final ConnectionPool pool;
+
+  private final HashRing ring;
+
+  private final ExecutorService fanOut = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "partitioned-client-fanout");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * @param pool opens the connections; it is not closed with this client
+   */
+  public PartitionedClient(ConnectionPool pool, List<InetSocketAddress> nodes) {
+    this(pool, new HashRing(nodes));
+  }
+
+  public PartitionedClient(ConnectionPool pool, HashRing ring) {
+    this.pool = pool;
+    this.ring = ring;
+  }
+
+  public HashRing ring() {
+    return ring;
+  }
+
+  @Override
+  public Result kvset(String key, String value, long ttlMillis) throws TException {
+    return pool.call(ring.nodeFor(key), client -> client.kvset(key, value, ttlMillis));
+  }
+
+  @Override
+  public Result kvget(String key) throws TException {
+    return pool.call(ring.nodeFor(key), client -> client.kvget(key));
+  }
+
+  @Override
+  public Result kvdelete(String key) throws TException {
+    return pool.call(ring.nodeFor(key), client -> client.kvdelete(key));
+  }
+
+  @Override
+  public Result kvcas(String key, String expected, String value) throws TException {
+    return pool.call(ring.nodeFor(key), client -> client.kvcas(key, expected, value));
+  }
+
+  @Override
+  public Result kvincr(String key, long delta) throws TException {
+    return pool.call(ring.nodeFor(key), client -> client.kvincr(key, delta));
+  }
+
+  @Override
+  public List<Result> kvmultiget(List<String> keys) throws TException {
+    return scatter(keys, key -> key, KVStore.Client::kvmultiget);
+  }
+
+  @Override
+  public List<Result> kvmultiset(List<KeyValue> pairs) throws TException {
+    return scatter(pairs, pair -> pair == null ? null : pair.key, KVStore.Client::kvmultiset);
+  }
+
+  @Override
+  public List<Result> kvmultidelete(List<String> keys) throws TException {
+    return scatter(keys, key -> key, KVStore.Client::kvmultidelete);
+  }
+
+  /**
+   * Every node scans the range, all but one of them on the fan-out threads, then the pages
+   * are merged
+   */
+  @Override
+  public ScanPage kvscan(String startKey, String endKey, int limit, String cursor) throws TException {
+    List<InetSocketAddress> nodes = ring.nodes();
+    List<Future<ScanPage>> futures = new ArrayList<>(nodes.size());
+    for (InetSocketAddress node : nodes.subList(1, nodes.size())) {
+      futures.add(fanOut.submit(() -> pool.call(node, client -> client.kvscan(startKey, endKey, limit, cursor))));
+    }
+    List<ScanPage> pages = new ArrayList<>(nodes.size());
+    pages.add(pool.call(nodes.get(0), client -> client.kvscan(startKey, endKey, limit, cursor)));
+    for (Future<ScanPage> future : futures) { pages.add(await(future)); }
+    return ScanPages.merge(pages, limit);
+  }
+
+  /**
+   * Replication is addressed to a backup server, not routed by key, so a cluster is never
+   * a backup
+   */
+  @Override
+  public long kvreplicate(List<LogEntry> entries, boolean reset, boolean completesCopy) throws TException {
+    logger.error("kvreplicate: not a backup");
+    return -1;
+  }
+
+  @Override
+  public TaggedValue kvtagget(String key) throws TException {
+    return pool.call(ring.nodeFor(key), client -> client.kvtagget(key));
+  }
+
+  @Override
+  public boolean kvtagset(String key, TaggedValue tagged) throws TException {
+    return pool.call(ring.nodeFor(key), client -> client.kvtagset(key, tagged));
+  }
+
+  /**
+   * A cluster grants no leases, since the invalidations of every node are numbered apart
+   * and cannot be polled as one stream; use a {@link NearCacheClient} per node instead
+   */
+  @Override
+  public LeasedResult kvleaseget(String key, String holder) throws TException {
+    return new LeasedResult(kvget(key), 0);
+  }
+
+  /**
+   * A cluster grants no leases, so there is never anything to invalidate
+   */
+  @Override
+  public Invalidations kvinvalidations(String holder, long acked, int waitMillis) throws TException {
+    return new Invalidations(new ArrayList<>(), acked);
+  }
+
+  /**
+   * The statistics of every node, all but one of them fetched on the fan-out threads, merged
+   * per operation. Counters are summed. Percentiles cannot be merged exactly, so each is the
+   * highest of the nodes, an upper bound of the cluster's. The uptime is the lowest.
+   */
+  @Override
+  public ServerStats kvstats() throws TException {
+    List<InetSocketAddress> nodes = ring.nodes();
+    List<Future<ServerStats>> futures = new ArrayList<>(nodes.size());
+    for (InetSocketAddress node : nodes.subList(1, nodes.size())) {
+      futures.add(fanOut.submit(() -> pool.call(node, KVStore.Client::kvstats)));
+    }
+    ServerStats merged = pool.call(nodes.get(0), KVStore.Client::kvstats);
+    Map<String, OperationStats> operations = new LinkedHashMap<>();
+    for (OperationStats op : merged.operations) { operations.put(op.operation, op); }
+    for (Future<ServerStats> future : futures) {
+      ServerStats stats = await(future);
+      merged.uptimeMillis = Math.min(merged.uptimeMillis, stats.uptimeMillis);
+      for (OperationStats op : stats.operations) { operations.merge(op.operation, op, PartitionedClient::merge); }
+    }
+    merged.operations = new ArrayList<>(operations.values());
+    return merged;
+  }
+
+  @Override
+  public void close() {
+    fanOut.shutdown();
+  }
+
+  /**
+   * Send one sub-batch per node, all but one of them on the fan-out threads, then put the
+   * results back in request order
+   */
+  private <T> List<Result> scatter(List<T> items, Function<T, String> keyOf, Batch<T> batch) throws TException {
+    if (items == null) { return pool.call(ring.nodeFor(null), client -> batch.apply(client, null)); }
+
+    Map<InetSocketAddress, List<Integer>> positions = new LinkedHashMap<>();
+    Map<InetSocketAddress, List<T>> parts = new LinkedHashMap<>();
+    for (int i = 0; i < items.size(); i++) {
+      InetSocketAddress node = ring.nodeFor(keyOf.apply(items.get(i)));
+      positions.computeIfAbsent(node, n -> new ArrayList<>()).add(i);
+      parts.computeIfAbsent(node, n -> new ArrayList<>()).add(items.get(i));
+    }
+    if (parts.size() <= 1) {
+      InetSocketAddress node = parts.isEmpty() ? ring.nodeFor(null) : parts.keySet().iterator().next();
+      return pool.call(node, client -> batch.apply(client, items));
+    }
+
+    List<InetSocketAddress> nodes = new ArrayList<>(parts.keySet());
+    List<Future<List<Result>>> futures = new ArrayList<>(nodes.size());
+    for (InetSocketAddress node : nodes.subList(1, nodes.size())) {
+      List<T> part = parts.get(node);
+      futures.add(fanOut.submit(() -> pool.call(node, client -> batch.apply(client, part))));
+    }
+
+    Result[] results = new Result[items.size()];
+    InetSocketAddress local = nodes.get(0);
+    place(results, positions.get(local), pool.call(local, client -> batch.apply(client, parts.get(local))));
+    for (int i = 1; i < nodes.size(); i++) {
+      place(results, positions.get(nodes.get(i)), await(futures.get(i - 1)));
+    }
+    return Arrays.asList(results);
+  }
+
+  private static OperationStats merge(OperationStats one, OperationStats other) {
+    return new OperationStats(one.operation, one.count + other.count, one.misses + other.misses,
+      one.errors + other.errors, one.inFlight + other.inFlight, Math.max(one.p50Nanos, other.p50Nanos),
+      Math.max(one.p99Nanos, other.p99Nanos), Math.max(one.p999Nanos, other.p999Nanos),
+      Math.max(one.maxNanos, other.maxNanos));
+  }
+
+  private static void place(Result[] results, List<Integer> positions, List<Result> partResults) {
+    for (int j = 0; j < partResults.size() && j < positions.size(); j++) {
+      results[positions.get(j)] = partResults.get(j);
+    }
+  }
+
+  private static <R> R await(Future<R> future) throws TException {
+    try {
+      return future.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new TException("interrupted while waiting for a node");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof TException) { throw (TException) cause; }
+      if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+      throw new TException(cause);
+    }
+  }
+}
@@ -0,0 +1,193 @@
+package kvclient;
+
+import kvstore.KVStore;
+import kvstore.LogEntry;
+import kvstore.Result;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolFactory;
+import org.apache.thrift.transport.TTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>An asynchronous KVStore client keeping up to {@code window} requests in flight on one
+ * connection. Requests are written as soon as they are issued, and a reader thread matches
+ * the responses, which the server sends back in request order, to the pending futures.</p>
+ *
+ * <p>Futures are completed on the reader thread, so their callbacks should be short. Once
+ * the connection fails, every pending and later request completes exceptionally.</p>
+ */
+public class PipelinedClient implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(PipelinedClient.class);
+
+  @FunctionalInterface
+  private interface Send {
+    void apply(SequencedClient client) throws TException;
+  }
+
+  @FunctionalInterface
+  private interface Receive<R> {
+    R apply(SequencedClient client) throws TException;
+  }
+
+  /**
+   * Exposes the sequence id the generated client checks responses against
+   */
+  private static class SequencedClient extends KVStore.Client {
+    SequencedClient(TProtocol iprot, TProtocol oprot) {
+      super(iprot, oprot);
+    }
+
+    int lastSent() {
+      return seqid_;
+    }
+
+    void expect(int seqid) {
+      seqid_ = seqid;
+    }
+  }
+
+  private static class Pending<R> {
+    final int seqid;
+    final Receive<R> receive;
+    final CompletableFuture<R> future;
+
+    Pending(int seqid, Receive<R> receive, CompletableFuture<R> future) {
+      this.seqid = seqid;
+      this.receive = receive;
+      this.future = future;
+    }
+  }
+
+  private final TTransport transport;
+
+  private final int windowSize;
+
+  private final Semaphore window;
+
+  private final SequencedClient sender;
+
+  private final SequencedClient receiver;
+
+  private final ReentrantLock sending = new ReentrantLock();
+
+  private final BlockingQueue<Pending<?>> pending = new LinkedBlockingQueue<>();
+
+  private final Thread reader;
+
+  private volatile TException failure;
+
+  /**
+   * @param transport an opened transport, owned by this client from now on
+   * @param window the max number of requests in flight
+   */
+  public PipelinedClient(TTransport transport, TProtocolFactory protocolFactory, int window) {
+    this.transport = transport;
+    this.windowSize = window;
+    this.window = new Semaphore(window);
+    TProtocol input = protocolFactory.getProtocol(transport);
+    TProtocol output = protocolFactory.getProtocol(transport);
+    sender = new SequencedClient(input, output);
+    receiver = new SequencedClient(input, output);
+
+    reader = new Thread(this::readLoop, "pipelined-client-reader");
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  public CompletableFuture<Result> kvset(String key, String value, long ttlMillis) {
+    return call(client -> client.send_kvset(key, value, ttlMillis), KVStore.Client::recv_kvset);
+  }
+
+  public CompletableFuture<Result> kvget(String key) {
+    return call(client -> client.send_kvget(key), KVStore.Client::recv_kvget);
+  }
+
+  public CompletableFuture<Result> kvdelete(String key) {
+    return call(client -> client.send_kvdelete(key), KVStore.Client::recv_kvdelete);
+  }
+
+  public CompletableFuture<Long> kvreplicate(List<LogEntry> entries, boolean reset, boolean completesCopy) {
+    return call(client -> client.send_kvreplicate(entries, reset, completesCopy), KVStore.Client::recv_kvreplicate);
+  }
+
+  /**
+   * Wait for every request in flight to complete, then close the connection
+   */
+  @Override
+  public void close() {
+    window.acquireUninterruptibly(windowSize);
+    reader.interrupt();
+    transport.close();
+  }
+
+  /**
+   * Send a request, blocking while the window is full
+   */
+  private <R> CompletableFuture<R> call(Send send, Receive<R> receive) {
+    CompletableFuture<R> future = new CompletableFuture<>();
+    window.acquireUninterruptibly();
+    sending.lock();
+    try {
+      if (failure != null) { throw failure; }
+      send.apply(sender);
+      pending.add(new Pending<>(sender.lastSent(), receive, future));
+
+    } catch (TException e) {
+      future.completeExceptionally(e);
+      window.release();
+      fail(e);
+    } finally {
+      sending.unlock();
+    }
+    return future;
+  }
+
+  private void readLoop() {
+    while (true) {
+      Pending<?> call;
+      try {
+        call = pending.take();
+      } catch (InterruptedException ie) {
+        return;
+      }
+
+      try {
+        complete(call);
+      } catch (TException e) {
+        call.future.completeExceptionally(e);
+        fail(e);
+      } finally {
+        window.release();
+      }
+    }
+  }
+
+  private <R> void complete(Pending<R> call) throws TException {
+    receiver.expect(call.seqid);
+    call.future.complete(call.receive.apply(receiver));
+  }
+
+  private void fail(TException e) {
+    if (failure == null) {
+      logger.error("Connection failed: {}", e.getMessage());
+      failure = e;
+      transport.close();
+    }
+    Pending<?> call;
+    while ((call = pending.poll()) != null) {
+      call.future.completeExceptionally(e);
+      window.release();
+    }
+  }
+}
@@ -0,0 +1,111 @@
+package kvclient;
+
+import kvstore.KVStore;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A connection borrowed from a {@link ConnectionPool}. Closing it returns it to the pool,
+ * unless it has been invalidated, e.g. after a failed call left it in an unknown state.
+ * Only the first close has an effect, and the pool lends the connection out again under
+ * a new handle, so a closed handle never touches it again.
+ */
+public class PooledConnection implements Closeable {
+
+  private final ConnectionPool pool;
+
+  private final InetSocketAddress endpoint;
+
+  private final TSocket socket;
+
+  private final TTransport transport;
+
+  private final KVStore.Client client;
+
+  private final long idleSince = System.currentTimeMillis();
+
+  private boolean valid = true;
+
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+
+  PooledConnection(ConnectionPool pool, InetSocketAddress endpoint, TSocket socket, TTransport transport) {
+    this(pool, endpoint, socket, transport, new KVStore.Client(pool.connector().protocolFactory().getProtocol(transport)));
+  }
+
+  private PooledConnection(ConnectionPool pool, InetSocketAddress endpoint, TSocket socket, TTransport transport,
+                           KVStore.Client client) {
+    this.pool = pool;
+    this.endpoint = endpoint;
+    this.socket = socket;
+    this.transport = transport;
+    this.client = client;
+  }
+
+  public KVStore.Client client() {
+    return client;
+  }
+
+  public InetSocketAddress endpoint() {
+    return endpoint;
+  }
+
+  /**
+   * Make sure this connection is discarded rather than returned to the pool
+   */
+  public void invalidate() {
+    valid = false;
+  }
+
+  @Override
+  public void close() {
+    if (closed.compareAndSet(false, true)) { pool.release(this); }
+  }
+
+  boolean isValid() {
+    return valid && transport.isOpen();
+  }
+
+  /**
+   * @return a new idle handle on the same connection, to keep in the pool
+   */
+  PooledConnection reissue() {
+    return new PooledConnection(pool, endpoint, socket, transport, client);
+  }
+
+  long idleMillis() {
+    return System.currentTimeMillis() - idleSince;
+  }
+
+  /**
+   * Probe the socket of an idle connection: a peer that has closed it reads EOF, and an
+   * idle connection must have nothing to read at all. Blocks for a millisecond at most.
+   */
+  boolean probe() {
+    Socket s = socket.getSocket();
+    try {
+      int timeout = s.getSoTimeout();
+      s.setSoTimeout(1);
+      try {
+        s.getInputStream().read();
+        return false;
+      } catch (SocketTimeoutException e) {
+        return true;
+      } finally {
+        s.setSoTimeout(timeout);
+      }
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  void destroy() {
+    transport.close();
+  }
+}
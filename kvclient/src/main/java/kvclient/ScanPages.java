@@ -0,0 +1,43 @@
+package kvclient;
+
+import kvstore.ErrorCode;
+import kvstore.KeyValue;
+import kvstore.ScanPage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Merges the pages of a {@code kvscan} sent with the same arguments to every part of a
+ * partitioned key space, into the page a single store would have returned.
+ */
+public class ScanPages {
+
+  private ScanPages() {}
+
+  /**
+   * A part that set a cursor may hold more keys after its last one, so the merged page stops
+   * at the lowest such cursor, and sets one itself if a part or the limit cut it short.
+   *
+   * @return the first failed page if any
+   */
+  public static ScanPage merge(List<ScanPage> pages, int limit) {
+    String bound = null;
+    List<KeyValue> pairs = new ArrayList<>();
+    for (ScanPage page : pages) {
+      if (page.result.error != ErrorCode.kSuccess) { return page; }
+      pairs.addAll(page.pairs);
+      if (page.isSetCursor() && (bound == null || page.cursor.compareTo(bound) < 0)) { bound = page.cursor; }
+    }
+    pairs.sort(Comparator.comparing(pair -> pair.key));
+
+    int size = 0;
+    while (size < pairs.size() && size < limit && (bound == null || pairs.get(size).key.compareTo(bound) <= 0)) {
+      size++;
+    }
+    ScanPage merged = new ScanPage(pages.get(0).result, new ArrayList<>(pairs.subList(0, size)));
+    if (size > 0 && (bound != null || size < pairs.size())) { merged.setCursor(pairs.get(size - 1).key); }
+    return merged;
+  }
+}
@@ -0,0 +1,82 @@
+package kvclient;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>Virtual threads, when the running JVM has them, i.e. Java 21 or later. The build
+ * targets Java 8, so they are reached by reflection on the {@code Thread.Builder} API.</p>
+ *
+ * <p>A virtual thread costs a few hundred bytes until it runs, and blocking socket reads
+ * unmount it from its carrier, so tens of thousands of blocking clients or connections
+ * can each have one. Code holding a monitor while it blocks pins its carrier, so long
+ * waits on virtual threads should use {@code java.util.concurrent} locks.</p>
+ */
+public class VirtualThreads {
+
+  private static final Method ofVirtual;
+
+  private static final Method name;
+
+  private static final Method factory;
+
+  private static final Method newThreadPerTaskExecutor;
+
+  /** why virtual threads are unavailable, null if they are available */
+  private static final String unavailable;
+
+  static {
+    Method[] methods = new Method[4];
+    String reason = null;
+    try {
+      Class<?> builder = Class.forName("java.lang.Thread$Builder");
+      methods[0] = Thread.class.getMethod("ofVirtual");
+      methods[1] = builder.getMethod("name", String.class, long.class);
+      methods[2] = builder.getMethod("factory");
+      methods[3] = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+      methods[0].invoke(null);
+    } catch (ClassNotFoundException | NoSuchMethodException e) {
+      reason = "virtual threads require Java 21 or later, running " + System.getProperty("java.version");
+    } catch (InvocationTargetException e) {
+      reason = "virtual threads are not enabled: " + e.getCause().getMessage();
+    } catch (IllegalAccessException e) {
+      reason = "virtual threads are not accessible: " + e.getMessage();
+    }
+    ofVirtual = methods[0];
+    name = methods[1];
+    factory = methods[2];
+    newThreadPerTaskExecutor = methods[3];
+    unavailable = reason;
+  }
+
+  private VirtualThreads() {}
+
+  public static boolean isAvailable() {
+    return unavailable == null;
+  }
+
+  /**
+   * @return why virtual threads are unavailable, null if they are available
+   */
+  public static String unavailableReason() {
+    return unavailable;
+  }
+
+  /**
+   * @param namePrefix names the threads, followed by a counter
+   * @return an executor starting a new virtual thread for every task
+   * @throws UnsupportedOperationException if virtual threads are unavailable
+   */
+  public static ExecutorService newPerTaskExecutor(String namePrefix) {
+    if (unavailable != null) { throw new UnsupportedOperationException(unavailable); }
+    try {
+      Object builder = name.invoke(ofVirtual.invoke(null), namePrefix, 0L);
+      return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory.invoke(builder));
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new UnsupportedOperationException("failed to create virtual threads", e);
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package dsf16;
+
+import kvclient.Connector;
+import kvstore.KVStore;
+import kvstore.Result;
+import org.apache.thrift.TException;
+import org.apache.thrift.server.TServer;
+import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TServerSocket;
+import org.apache.thrift.transport.TSocket;
+import org.apache.thrift.transport.TTransport;
+import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the protocols and transports end to end, over loopback against a server in
+ * threadpool mode. Besides ops/s, the "bytesSent" and "bytesReceived" counters report the
+ * bytes the client wrote to and read from its socket per second; divide them by the ops/s
+ * for the bytes on the wire per request.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WireBenchmark {
+
+  private static final int keyCount = 1024;
+
+  @Param({ "binary", "compact" })
+  public Connector.Protocol protocol;
+
+  @Param({ "buffered", "framed" })
+  public Connector.Transport transport;
+
+  private final String[] keys = new String[keyCount];
+
+  private final String[] values = new String[keyCount];
+
+  private TServer server;
+
+  private int port;
+
+  @Setup
+  public void setup() throws TException, InterruptedException {
+    KVStoreHandler handler = new KVStoreHandler(new ConcurrentHashMap<>(), false);
+    for (int i = 0; i < keyCount; i++) {
+      keys[i] = "key" + i;
+      values[i] = "value" + i;
+      handler.kvset(keys[i], values[i], 0);
+    }
+    TServerSocket socket = new TServerSocket(0);
+    port = socket.getServerSocket().getLocalPort();
+    server = new TThreadPoolServer(new TThreadPoolServer.Args(socket)
+      .processor(new KVStore.Processor<>(handler))
+      .protocolFactory(protocol.factory())
+      .transportFactory(transport == Connector.Transport.framed ? new TFramedTransport.Factory() : new TTransportFactory()));
+    Thread serving = new Thread(server::serve, "wire-benchmark-server");
+    serving.setDaemon(true);
+    serving.start();
+    while (!server.isServing()) { Thread.sleep(10); }
+  }
+
+  @TearDown
+  public void tearDown() {
+    server.stop();
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters
+  public static class Client {
+    public long bytesSent;
+    public long bytesReceived;
+
+    private TTransport transport;
+    private KVStore.Client client;
+    private int next = 0;
+
+    @Setup
+    public void open(WireBenchmark benchmark) throws TTransportException {
+      TTransport counting = new Counting(new TSocket("localhost", benchmark.port), this);
+      transport = benchmark.transport == Connector.Transport.framed ? new TFramedTransport(counting) : counting;
+      transport.open();
+      client = new KVStore.Client(benchmark.protocol.factory().getProtocol(transport));
+    }
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      bytesSent = 0;
+      bytesReceived = 0;
+    }
+
+    @TearDown
+    public void close() {
+      transport.close();
+    }
+  }
+
+  @Benchmark
+  public Result kvset(Client client) throws TException {
+    int i = client.next++ & (keyCount - 1);
+    return client.client.kvset(keys[i], values[i], 0);
+  }
+
+  @Benchmark
+  public Result kvget(Client client) throws TException {
+    return client.client.kvget(keys[client.next++ & (keyCount - 1)]);
+  }
+
+  /**
+   * Counts the bytes through the socket, below any framing
+   */
+  private static class Counting extends TTransport {
+    private final TSocket socket;
+    private final Client counters;
+
+    Counting(TSocket socket, Client counters) {
+      this.socket = socket;
+      this.counters = counters;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return socket.isOpen();
+    }
+
+    @Override
+    public void open() throws TTransportException {
+      socket.open();
+    }
+
+    @Override
+    public void close() {
+      socket.close();
+    }
+
+    @Override
+    public int read(byte[] buf, int off, int len) throws TTransportException {
+      int read = socket.read(buf, off, len);
+      counters.bytesReceived += read;
+      return read;
+    }
+
+    @Override
+    public void write(byte[] buf, int off, int len) throws TTransportException {
+      socket.write(buf, off, len);
+      counters.bytesSent += len;
+    }
+
+    @Override
+    public void flush() throws TTransportException {
+      socket.flush();
+    }
+  }
+}
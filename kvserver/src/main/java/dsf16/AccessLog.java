@@ -0,0 +1,215 @@
+package dsf16;
+
+import kvstore.ErrorCode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Records sampled requests into a preallocated, lock-free ring buffer, which a background
+ * thread drains into a binary file. Handler threads never format, lock or do I/O, and a
+ * request skipped by sampling costs one random number. When the writer falls behind,
+ * new records are dropped and counted rather than blocking the request.</p>
+ *
+ * <p>The file starts with the magic int {@code 0x4b56414c} ("KVAL"), followed by records of
+ * {@code [timestampMillis:long][operation:byte][errorCode:byte][key][value]}, where each
+ * string is a UTF-8 byte count (int, -1 for null) and its bytes.</p>
+ */
+class AccessLog implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(AccessLog.class);
+
+  private static final int magic = 0x4b56414c; // "KVAL"
+
+  private static final AccessLog disabled = new AccessLog();
+
+  private final boolean enabled;
+
+  /** sampling rate indexed by operation ordinal */
+  private final double[] rates = new double[Operation.values().length];
+
+  private final int mask;
+
+  private final long[] timestamps;
+
+  private final Operation[] operations;
+
+  private final ErrorCode[] codes;
+
+  private final String[] keys;
+
+  private final String[] values;
+
+  /** the sequence number each slot was last published for */
+  private final AtomicLongArray published;
+
+  private final AtomicLong tail = new AtomicLong();
+
+  private final AtomicLong dropped = new AtomicLong();
+
+  private volatile long head = 0;
+
+  private volatile boolean closed = false;
+
+  private final DataOutputStream out;
+
+  private final Thread writer;
+
+  private AccessLog() {
+    enabled = false;
+    mask = 0;
+    timestamps = null;
+    operations = null;
+    codes = null;
+    keys = null;
+    values = null;
+    published = null;
+    out = null;
+    writer = null;
+  }
+
+  /**
+   * @param capacity slots in the ring buffer, rounded up to a power of two
+   * @param sampling rate in [0, 1] per operation; operations not listed are not logged
+   */
+  AccessLog(Path file, int capacity, Map<Operation, Double> sampling) throws IOException {
+    enabled = true;
+    for (Map.Entry<Operation, Double> rate : sampling.entrySet()) {
+      rates[rate.getKey().ordinal()] = rate.getValue();
+    }
+
+    int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+    mask = size - 1;
+    timestamps = new long[size];
+    operations = new Operation[size];
+    codes = new ErrorCode[size];
+    keys = new String[size];
+    values = new String[size];
+    published = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) { published.set(i, -1); }
+
+    boolean isNew = !Files.exists(file) || Files.size(file) == 0;
+    out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+      StandardOpenOption.CREATE, StandardOpenOption.APPEND), 1 << 16));
+    if (isNew) { out.writeInt(magic); }
+
+    writer = new Thread(this::drainLoop, "access-log-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  static AccessLog disabled() {
+    return disabled;
+  }
+
+  /**
+   * Sample every operation at the same rate
+   */
+  static Map<Operation, Double> uniform(double rate) {
+    Map<Operation, Double> sampling = new EnumMap<>(Operation.class);
+    for (Operation op : Operation.values()) { sampling.put(op, rate); }
+    return sampling;
+  }
+
+  void record(Operation op, ErrorCode code, String key, String value) {
+    if (!enabled) { return; }
+    double rate = rates[op.ordinal()];
+    if (rate <= 0 || (rate < 1 && ThreadLocalRandom.current().nextDouble() >= rate)) { return; }
+
+    long seq;
+    do {
+      seq = tail.get();
+      if (seq - head > mask) {
+        dropped.incrementAndGet();
+        return;
+      }
+    } while (!tail.compareAndSet(seq, seq + 1));
+
+    int slot = (int) seq & mask;
+    timestamps[slot] = System.currentTimeMillis();
+    operations[slot] = op;
+    codes[slot] = code;
+    keys[slot] = key;
+    values[slot] = value;
+    published.lazySet(slot, seq);
+  }
+
+  long droppedCount() {
+    return dropped.get();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!enabled || closed) { return; }
+    closed = true;
+    try {
+      writer.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    out.close();
+  }
+
+  private void drainLoop() {
+    try {
+      while (true) {
+        boolean isClosing = closed;
+        int drained = drain();
+        if (drained == 0) {
+          if (isClosing) { break; }
+          out.flush();
+          LockSupport.parkNanos(1_000_000);
+        }
+      }
+      if (dropped.get() > 0) {
+        logger.warn("{} access log records were dropped", dropped.get());
+      }
+    } catch (IOException e) {
+      logger.error("Access log writer stopped: {}", e.getMessage());
+    }
+  }
+
+  private int drain() throws IOException {
+    int drained = 0;
+    long seq = head;
+    int slot = (int) seq & mask;
+    while (published.get(slot) == seq) {
+      out.writeLong(timestamps[slot]);
+      out.writeByte(operations[slot].ordinal());
+      out.writeByte(codes[slot].getValue());
+      writeString(keys[slot]);
+      writeString(values[slot]);
+      keys[slot] = null;
+      values[slot] = null;
+
+      head = ++seq;
+      slot = (int) seq & mask;
+      drained++;
+    }
+    return drained;
+  }
+
+  private void writeString(String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+}
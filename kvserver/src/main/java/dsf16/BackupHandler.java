@@ -0,0 +1,201 @@
+package dsf16;
+
+import kvclient.ConnectionPool;
+import kvstore.Invalidations;
+import kvstore.KVStore;
+import kvstore.KeyValue;
+import kvstore.LeasedResult;
+import kvstore.LogEntry;
+import kvstore.Result;
+import kvstore.ScanPage;
+import kvstore.ServerStats;
+import kvstore.TaggedValue;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static kvstore.ErrorCode.kError;
+import static org.slf4j.event.Level.ERROR;
+
+/**
+ * <p>Serves a backup. Reads are answered from the local copy of the store, writes are
+ * forwarded to the primary, and the primary's write log is applied through
+ * {@code kvreplicate}.</p>
+ *
+ * <p>With synchronous replication a forwarded write returns once this backup has applied
+ * it, so a client reading from one backup sees its own writes. While the store is being
+ * copied, the local copy may be behind or ahead of the log, so reads are forwarded to the
+ * primary too until the primary tells that the copy is complete.</p>
+ */
+class BackupHandler implements KVStore.Iface {
+
+  private static final Logger logger = LoggerFactory.getLogger(BackupHandler.class);
+
+  private static final ErrorResultMaker primaryUnavailable = new ErrorResultMaker(logger, ERROR, kError, "%s: primary unavailable, %s");
+
+  private final KVStore.Iface local;
+
+  private final Map<String, String> map;
+
+  private final ConnectionPool pool;
+
+  private final InetSocketAddress primary;
+
+  /** the highest sequence number applied since the last reset */
+  private long applied = 0;
+
+  /** whether the local copy may serve reads */
+  private volatile boolean isInSync = false;
+
+  /**
+   * @param local serves reads from the map
+   * @param pool opens the connections writes are forwarded on
+   */
+  BackupHandler(KVStore.Iface local, Map<String, String> map, ConnectionPool pool, InetSocketAddress primary) {
+    this.local = local;
+    this.map = map;
+    this.pool = pool;
+    this.primary = primary;
+  }
+
+  @Override
+  public Result kvset(String key, String value, long ttlMillis) throws TException {
+    try {
+      return pool.call(primary, client -> client.kvset(key, value, ttlMillis));
+    } catch (TException e) {
+      return primaryUnavailable.make("kvset", e.getMessage());
+    }
+  }
+
+  @Override
+  public Result kvget(String key) throws TException {
+    if (isInSync) { return local.kvget(key); }
+    try {
+      return pool.call(primary, client -> client.kvget(key));
+    } catch (TException e) {
+      return primaryUnavailable.make("kvget", e.getMessage());
+    }
+  }
+
+  @Override
+  public Result kvdelete(String key) throws TException {
+    try {
+      return pool.call(primary, client -> client.kvdelete(key));
+    } catch (TException e) {
+      return primaryUnavailable.make("kvdelete", e.getMessage());
+    }
+  }
+
+  @Override
+  public Result kvcas(String key, String expected, String value) throws TException {
+    try {
+      return pool.call(primary, client -> client.kvcas(key, expected, value));
+    } catch (TException e) {
+      return primaryUnavailable.make("kvcas", e.getMessage());
+    }
+  }
+
+  @Override
+  public Result kvincr(String key, long delta) throws TException {
+    try {
+      return pool.call(primary, client -> client.kvincr(key, delta));
+    } catch (TException e) {
+      return primaryUnavailable.make("kvincr", e.getMessage());
+    }
+  }
+
+  @Override
+  public List<Result> kvmultiget(List<String> keys) throws TException {
+    if (isInSync) { return local.kvmultiget(keys); }
+    try {
+      return pool.call(primary, client -> client.kvmultiget(keys));
+    } catch (TException e) {
+      return Collections.singletonList(primaryUnavailable.make("kvmultiget", e.getMessage()));
+    }
+  }
+
+  @Override
+  public List<Result> kvmultiset(List<KeyValue> pairs) throws TException {
+    try {
+      return pool.call(primary, client -> client.kvmultiset(pairs));
+    } catch (TException e) {
+      return Collections.singletonList(primaryUnavailable.make("kvmultiset", e.getMessage()));
+    }
+  }
+
+  @Override
+  public List<Result> kvmultidelete(List<String> keys) throws TException {
+    try {
+      return pool.call(primary, client -> client.kvmultidelete(keys));
+    } catch (TException e) {
+      return Collections.singletonList(primaryUnavailable.make("kvmultidelete", e.getMessage()));
+    }
+  }
+
+  @Override
+  public ScanPage kvscan(String startKey, String endKey, int limit, String cursor) throws TException {
+    if (isInSync) { return local.kvscan(startKey, endKey, limit, cursor); }
+    try {
+      return pool.call(primary, client -> client.kvscan(startKey, endKey, limit, cursor));
+    } catch (TException e) {
+      return new ScanPage(primaryUnavailable.make("kvscan", e.getMessage()), new ArrayList<>());
+    }
+  }
+
+  @Override
+  public synchronized long kvreplicate(List<LogEntry> entries, boolean reset, boolean completesCopy) throws TException {
+    if (reset) {
+      logger.info("Receiving a copy of the store from the primary");
+      isInSync = false;
+      for (String key : new ArrayList<>(map.keySet())) { map.remove(key); }
+      applied = 0;
+    }
+    for (LogEntry entry : entries) {
+      if (entry.isSetValue()) {
+        map.put(entry.key, entry.value);
+      } else {
+        map.remove(entry.key);
+      }
+      applied = Math.max(applied, entry.sequence);
+    }
+    if (completesCopy && !isInSync) {
+      logger.info("In sync with the primary at sequence {}, serving reads", applied);
+      isInSync = true;
+    }
+    return applied;
+  }
+
+  @Override
+  public TaggedValue kvtagget(String key) throws TException {
+    return local.kvtagget(key);
+  }
+
+  @Override
+  public boolean kvtagset(String key, TaggedValue tagged) throws TException {
+    return local.kvtagset(key, tagged);
+  }
+
+  /**
+   * Backups grant no leases, since they apply writes without revoking them
+   */
+  @Override
+  public LeasedResult kvleaseget(String key, String holder) throws TException {
+    return new LeasedResult(kvget(key), 0);
+  }
+
+  @Override
+  public Invalidations kvinvalidations(String holder, long acked, int waitMillis) throws TException {
+    return local.kvinvalidations(holder, acked, waitMillis);
+  }
+
+  @Override
+  public ServerStats kvstats() throws TException {
+    return local.kvstats();
+  }
+}
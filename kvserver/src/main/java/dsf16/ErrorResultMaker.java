@@ -29,6 +29,14 @@ public class ErrorResultMaker {
     this.format = format;
   }
 
+  /**
+   * Build a Result once, without logging, to be shared by every caller on a hot path.
+   * A shared Result must never be modified.
+   */
+  public Result prepare(Object ... args) {
+    return new Result("", code, String.format(format, args));
+  }
+
   public Result make(Object ... args) {
     String msg = String.format(format, args);
     log(msg);
@@ -36,6 +44,7 @@ public class ErrorResultMaker {
   }
 
   private void log(String msg) {
+    if (!isEnabled()) { return; }
     switch (level) {
       case DEBUG:
         logger.debug(msg); break;
@@ -50,4 +59,20 @@ public class ErrorResultMaker {
         logger.info(msg);
     }
   }
+
+  private boolean isEnabled() {
+    switch (level) {
+      case DEBUG:
+        return logger.isDebugEnabled();
+      case ERROR:
+        return logger.isErrorEnabled();
+      case TRACE:
+        return logger.isTraceEnabled();
+      case WARN:
+        return logger.isWarnEnabled();
+      case INFO:
+      default:
+        return logger.isInfoEnabled();
+    }
+  }
 }
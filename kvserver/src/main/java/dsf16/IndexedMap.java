@@ -0,0 +1,189 @@
+package dsf16;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.BiFunction;
+
+/**
+ * <p>A store with an ordered index of its keys, a concurrent skip list maintained alongside
+ * the hash index of the map it wraps, so that key ranges can be scanned in order.</p>
+ *
+ * <p>The index is built by the first scan, so a store that is never scanned pays nothing for
+ * it. From then on every mutation that may have added or removed its key is followed by a
+ * reconciliation of the key, which adds it to the index or removes it from there depending
+ * on whether the map holds it; overwrites and failed conditional writes are not. A mutation
+ * checks whether the index is built only after it is applied, so the ones that miss the
+ * reconciliation are visible to the build. Reconciliations of a key are serialized by a lock
+ * striped by key, and each reads the map afresh, so the index agrees with the map once the
+ * writes of a key are over. Meanwhile it may lag them: scans check every indexed key against
+ * the map.</p>
+ */
+class IndexedMap extends AbstractMap<String, String> implements ConcurrentMap<String, String> {
+
+  private static final int stripeCount = 256;
+
+  private final Map<String, String> map;
+
+  private final ConcurrentSkipListSet<String> index = new ConcurrentSkipListSet<>();
+
+  private final Object[] stripes = new Object[stripeCount];
+
+  /** set by the first scan, until then mutations skip the index */
+  private volatile boolean isIndexed = false;
+
+  IndexedMap(Map<String, String> map) {
+    this.map = map;
+    for (int i = 0; i < stripeCount; i++) { stripes[i] = new Object(); }
+  }
+
+  /**
+   * @return the indexed keys in [from, to), or after from if not inclusive; a null bound
+   *         leaves its end open. Indexed keys may have just been removed from the map.
+   */
+  NavigableSet<String> keys(String from, boolean inclusive, String to) {
+    if (!isIndexed) { buildIndex(); }
+    if (from == null && to == null) { return index; }
+    if (from == null) { return index.headSet(to, false); }
+    if (to == null) { return index.tailSet(from, inclusive); }
+    if (from.compareTo(to) > 0) { return index.subSet(to, true, to, false); }
+    return index.subSet(from, inclusive, to, false);
+  }
+
+  /**
+   * @return whether {@link #compute} runs atomically in the backing map, rather than as a
+   *         loop of putIfAbsent and replace
+   */
+  boolean computesInPlace() {
+    return map instanceof ConcurrentHashMap || !(map instanceof ConcurrentMap);
+  }
+
+  @Override
+  public String get(Object key) {
+    return map.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return map.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public String put(String key, String value) {
+    String previous = null;
+    try {
+      return previous = map.put(key, value);
+    } finally {
+      if (previous == null) { reconcile(key); }
+    }
+  }
+
+  @Override
+  public String remove(Object key) {
+    boolean removed = true;
+    try {
+      String previous = map.remove(key);
+      removed = previous != null;
+      return previous;
+    } finally {
+      if (removed) { reconcile((String) key); }
+    }
+  }
+
+  @Override
+  public String putIfAbsent(String key, String value) {
+    String previous = null;
+    try {
+      return previous = map.putIfAbsent(key, value);
+    } finally {
+      if (previous == null) { reconcile(key); }
+    }
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    boolean removed = true;
+    try {
+      return removed = map.remove(key, value);
+    } finally {
+      if (removed) { reconcile((String) key); }
+    }
+  }
+
+  /**
+   * Replacing never adds or removes the key
+   */
+  @Override
+  public boolean replace(String key, String oldValue, String newValue) {
+    return map.replace(key, oldValue, newValue);
+  }
+
+  /**
+   * Replacing never adds or removes the key
+   */
+  @Override
+  public String replace(String key, String value) {
+    return map.replace(key, value);
+  }
+
+  @Override
+  public String compute(String key, BiFunction<? super String, ? super String, ? extends String> function) {
+    if (!computesInPlace()) { return ConcurrentMap.super.compute(key, function); }
+    try {
+      return map.compute(key, function);
+    } finally {
+      reconcile(key);
+    }
+  }
+
+  /**
+   * A read-only view of the map, unordered
+   */
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    return Collections.unmodifiableMap(map).entrySet();
+  }
+
+  /**
+   * Index every key of the map, while writers reconcile theirs. An unsynchronized map
+   * written meanwhile fails the iteration, which then starts over.
+   */
+  private synchronized void buildIndex() {
+    if (isIndexed) { return; }
+    isIndexed = true;
+    while (true) {
+      try {
+        for (String key : map.keySet()) { reconcile(key); }
+        return;
+      } catch (ConcurrentModificationException e) {
+        // retry
+      }
+    }
+  }
+
+  /**
+   * Called by every mutation in a finally block rather than through a lambda, so that
+   * writes allocate nothing
+   */
+  private void reconcile(String key) {
+    if (key == null || !isIndexed) { return; }
+    synchronized (stripes[(key.hashCode() * 0x9e3779b9 >>> 24) & (stripeCount - 1)]) {
+      if (map.containsKey(key)) {
+        index.add(key);
+      } else {
+        index.remove(key);
+      }
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package dsf16;
+
+import kvstore.Invalidations;
+import kvstore.KVStore;
+import kvstore.KeyValue;
+import kvstore.LeasedResult;
+import kvstore.LogEntry;
+import kvstore.OperationStats;
+import kvstore.Result;
+import kvstore.ScanPage;
+import kvstore.ServerStats;
+import kvstore.TaggedValue;
+import org.apache.thrift.TException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static kvstore.ErrorCode.kError;
+import static kvstore.ErrorCode.kKeyNotFound;
+import static kvstore.ErrorCode.kMismatch;
+
+/**
+ * <p>Measures every client request to the handler it wraps, and serves the figures through
+ * {@code kvstats}. Per operation it keeps a {@link LatencyHistogram}, counters of calls,
+ * misses and errors, and a gauge of the calls in flight. Misses and errors count results,
+ * one per key of a batch, and an exception counts as an error. A failed compare-and-set
+ * counts as a miss.</p>
+ *
+ * <p>Recording takes two clock reads and a few striped {@link LongAdder} increments, without
+ * locks. A leased read counts as a kvget. The replication and invalidation calls between
+ * servers and near caches are not measured.</p>
+ */
+class InstrumentedHandler implements KVStore.Iface {
+
+  @FunctionalInterface
+  private interface Call<R> {
+    R apply() throws TException;
+  }
+
+  private static class Meter {
+    final LatencyHistogram latencies = new LatencyHistogram();
+    final LongAdder count = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder inFlight = new LongAdder();
+
+    void count(Result result) {
+      if (result == null) { return; }
+      if (result.error == kKeyNotFound || result.error == kMismatch) {
+        misses.increment();
+      } else if (result.error == kError) {
+        errors.increment();
+      }
+    }
+  }
+
+  private final KVStore.Iface handler;
+
+  /** indexed by operation ordinal */
+  private final Meter[] meters = new Meter[Operation.values().length];
+
+  private final long startMillis = System.currentTimeMillis();
+
+  InstrumentedHandler(KVStore.Iface handler) {
+    this.handler = handler;
+    for (int i = 0; i < meters.length; i++) { meters[i] = new Meter(); }
+  }
+
+  @Override
+  public Result kvset(String key, String value, long ttlMillis) throws TException {
+    return measure(Operation.kvset, () -> handler.kvset(key, value, ttlMillis));
+  }
+
+  @Override
+  public Result kvget(String key) throws TException {
+    return measure(Operation.kvget, () -> handler.kvget(key));
+  }
+
+  @Override
+  public Result kvdelete(String key) throws TException {
+    return measure(Operation.kvdelete, () -> handler.kvdelete(key));
+  }
+
+  @Override
+  public Result kvcas(String key, String expected, String value) throws TException {
+    return measure(Operation.kvcas, () -> handler.kvcas(key, expected, value));
+  }
+
+  @Override
+  public Result kvincr(String key, long delta) throws TException {
+    return measure(Operation.kvincr, () -> handler.kvincr(key, delta));
+  }
+
+  @Override
+  public List<Result> kvmultiget(List<String> keys) throws TException {
+    return measureBatch(Operation.kvmultiget, () -> handler.kvmultiget(keys));
+  }
+
+  @Override
+  public List<Result> kvmultiset(List<KeyValue> pairs) throws TException {
+    return measureBatch(Operation.kvmultiset, () -> handler.kvmultiset(pairs));
+  }
+
+  @Override
+  public List<Result> kvmultidelete(List<String> keys) throws TException {
+    return measureBatch(Operation.kvmultidelete, () -> handler.kvmultidelete(keys));
+  }
+
+  @Override
+  public ScanPage kvscan(String startKey, String endKey, int limit, String cursor) throws TException {
+    Meter meter = meters[Operation.kvscan.ordinal()];
+    return measure(meter, () -> handler.kvscan(startKey, endKey, limit, cursor), page -> meter.count(page.result));
+  }
+
+  @Override
+  public long kvreplicate(List<LogEntry> entries, boolean reset, boolean completesCopy) throws TException {
+    return handler.kvreplicate(entries, reset, completesCopy);
+  }
+
+  @Override
+  public TaggedValue kvtagget(String key) throws TException {
+    return handler.kvtagget(key);
+  }
+
+  @Override
+  public boolean kvtagset(String key, TaggedValue tagged) throws TException {
+    return handler.kvtagset(key, tagged);
+  }
+
+  @Override
+  public LeasedResult kvleaseget(String key, String holder) throws TException {
+    Meter meter = meters[Operation.kvget.ordinal()];
+    return measure(meter, () -> handler.kvleaseget(key, holder), leased -> meter.count(leased.result));
+  }
+
+  @Override
+  public Invalidations kvinvalidations(String holder, long acked, int waitMillis) throws TException {
+    return handler.kvinvalidations(holder, acked, waitMillis);
+  }
+
+  @Override
+  public ServerStats kvstats() throws TException {
+    List<OperationStats> operations = new ArrayList<>(meters.length);
+    for (Operation operation : Operation.values()) {
+      Meter meter = meters[operation.ordinal()];
+      LatencyHistogram.Snapshot latencies = meter.latencies.snapshot();
+      operations.add(new OperationStats(operation.name(), meter.count.sum(), meter.misses.sum(),
+        meter.errors.sum(), meter.inFlight.sum(), latencies.valueAt(0.5), latencies.valueAt(0.99),
+        latencies.valueAt(0.999), latencies.max()));
+    }
+    return new ServerStats(System.currentTimeMillis() - startMillis, operations);
+  }
+
+  private Result measure(Operation operation, Call<Result> call) throws TException {
+    Meter meter = meters[operation.ordinal()];
+    return measure(meter, call, meter::count);
+  }
+
+  private List<Result> measureBatch(Operation operation, Call<List<Result>> call) throws TException {
+    Meter meter = meters[operation.ordinal()];
+    return measure(meter, call, results -> results.forEach(meter::count));
+  }
+
+  private static <R> R measure(Meter meter, Call<R> call, Consumer<R> outcome) throws TException {
+    meter.inFlight.increment();
+    long start = System.nanoTime();
+    try {
+      R result = call.apply();
+      if (result != null) { outcome.accept(result); }
+      return result;
+    } catch (TException | RuntimeException e) {
+      meter.errors.increment();
+      throw e;
+    } finally {
+      meter.latencies.record(System.nanoTime() - start);
+      meter.count.increment();
+      meter.inFlight.decrement();
+    }
+  }
+}
@@ -1,18 +1,30 @@
 package dsf16;
 
+import kvstore.Invalidations;
 import kvstore.KVStore;
+import kvstore.KeyValue;
+import kvstore.LeasedResult;
+import kvstore.LogEntry;
 import kvstore.Result;
+import kvstore.ScanPage;
+import kvstore.ServerStats;
+import kvstore.TaggedValue;
 import org.apache.thrift.TException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.function.UnaryOperator;
 
 import static kvstore.ErrorCode.*;
+import static org.slf4j.event.Level.DEBUG;
 import static org.slf4j.event.Level.ERROR;
-import static org.slf4j.event.Level.WARN;
 
 /**
  * It implements the interface provided by the kvstore.thrift.
@@ -23,59 +35,505 @@ class KVStoreHandler implements KVStore.Iface {
   // TODO log incoming request's IP in every function call
   private static final Logger logger = LoggerFactory.getLogger(KVStoreHandler.class);
 
-  private static final ErrorResultMaker keyNotFound = new ErrorResultMaker(logger, WARN, kKeyNotFound, "%s: key '%s' not found");
+  private static final ErrorResultMaker keyNotFound = new ErrorResultMaker(logger, DEBUG, kKeyNotFound, "%s: key not found");
 
   private static final ErrorResultMaker paramIsNull = new ErrorResultMaker(logger, ERROR, kError, "%s cannot be null");
 
-  private final Map<String, String> map; // TODO wrap file store
+  private static final ErrorResultMaker paramIsNegative = new ErrorResultMaker(logger, ERROR, kError, "%s cannot be negative");
 
-  private final ScheduledExecutorService delayed = Executors.newScheduledThreadPool(20);
+  private static final ErrorResultMaker paramNotPositive = new ErrorResultMaker(logger, ERROR, kError, "%s must be positive");
+
+  private static final ErrorResultMaker valueMismatch = new ErrorResultMaker(logger, DEBUG, kMismatch, "%s: value mismatch");
+
+  private static final ErrorResultMaker notAnInteger = new ErrorResultMaker(logger, ERROR, kError, "%s: value is not an integer");
+
+  private static final ErrorResultMaker overflow = new ErrorResultMaker(logger, ERROR, kError, "%s: integer overflow");
+
+  private static final ErrorResultMaker ttlUnsupported = new ErrorResultMaker(logger, ERROR, kError, "%s: TTL not supported by a durable store");
+
+  /** the most pairs a scan page holds, whatever the limit asked */
+  static final int maxScanLimit = 1000;
+
+  /** the precision of key expiry by the timing wheel; reads hide expired keys right away */
+  private static final long expiryTickMillis = 10;
+
+  // Results shared by every call so that the hot paths allocate nothing; never modify them
+
+  private static final Result success = new Result("", kSuccess, "");
+
+  private static final Result kvgetMiss = keyNotFound.prepare("kvget");
+
+  private static final Result kvdeleteMiss = keyNotFound.prepare("kvdelete");
+
+  private static final Result kvcasMiss = keyNotFound.prepare("kvcas");
+
+  private static final Result kvmultigetMiss = keyNotFound.prepare("kvmultiget");
+
+  private static final Result kvmultideleteMiss = keyNotFound.prepare("kvmultidelete");
+
+  private final IndexedMap map;
+
+  private final ScheduledExecutorService delayed;
 
   private final boolean isBuggy;
 
+  private final AccessLog accessLog;
+
+  private final Leases leases;
+
+  /** whether the map outlives the process, which expiry deadlines do not */
+  private final boolean isDurable;
+
+  private final TimingWheel wheel = new TimingWheel(expiryTickMillis, nowMillis());
+
+  /** the expiry timer of every key set with a TTL, changed together with the key */
+  private final ConcurrentMap<String, TimingWheel.Timer> expiries = new ConcurrentHashMap<>();
+
+  /** set with the first TTL, until then writes skip the expiry bookkeeping */
+  private volatile boolean hasExpiries = false;
+
+  /** the tag of every key written through kvtagset, its value lives in the map */
+  private final ConcurrentMap<String, TaggedValue> tags = new ConcurrentHashMap<>();
+
   KVStoreHandler(boolean isBuggy) {
+    this(isBuggy ? new HashMap<>() : new ConcurrentHashMap<>(), isBuggy);
+  }
+
+  /**
+   * @param map the backing store, e.g. a durable {@link storage.LogStructuredMap}
+   */
+  KVStoreHandler(Map<String, String> map, boolean isBuggy) {
+    this(map, isBuggy, AccessLog.disabled());
+  }
+
+  KVStoreHandler(Map<String, String> map, boolean isBuggy, AccessLog accessLog) {
+    this(map, isBuggy, accessLog, Executors.newScheduledThreadPool(20));
+  }
+
+  /**
+   * @param delayed runs the delayed writes of the buggy mode, and advances the timing wheel
+   */
+  KVStoreHandler(Map<String, String> map, boolean isBuggy, AccessLog accessLog, ScheduledExecutorService delayed) {
+    this(map, isBuggy, accessLog, delayed, Leases.disabled(), false);
+  }
+
+  /**
+   * @param map revokes the leases before every write, see {@link LeasedMap}; it is indexed
+   *            unless it is an {@link IndexedMap} already, which other writers must share
+   * @param isDurable whether the map survives a restart, in which case TTLs are rejected
+   *                  since deadlines are kept in memory only
+   */
+  KVStoreHandler(Map<String, String> map, boolean isBuggy, AccessLog accessLog, ScheduledExecutorService delayed,
+                 Leases leases, boolean isDurable) {
+    this.map = map instanceof IndexedMap ? (IndexedMap) map : new IndexedMap(map);
+    this.delayed = delayed;
     this.isBuggy = isBuggy;
-    if (isBuggy) {
-      map = new HashMap<>();
-    } else {
-      map = new ConcurrentHashMap<>();
-    }
+    this.accessLog = accessLog;
+    this.leases = leases;
+    this.isDurable = isDurable;
   }
 
   @Override
-  public Result kvset(String key, String value) throws TException {
-    logger.info("kvset: {} = {}", key, value);
-
+  public Result kvset(String key, String value, long ttlMillis) throws TException {
     if (key == null) { return paramIsNull.make("key"); }
     if (value == null) { return paramIsNull.make("value"); }
-    if (isBuggy && ThreadLocalRandom.current().nextInt(10) == 0) {
-        int delay = ThreadLocalRandom.current().nextInt(2);
-        delayed.schedule(() -> map.put(key, value), delay, TimeUnit.MILLISECONDS);
-    } else {
-      map.put(key, value);
-    }
-    return new Result("", kSuccess, "");
+    if (ttlMillis < 0) { return paramIsNegative.make("ttlMillis"); }
+    if (ttlMillis > 0 && isDurable) { return ttlUnsupported.make("kvset"); }
+    put(key, value, ttlMillis);
+    accessLog.record(Operation.kvset, kSuccess, key, value);
+    return success;
   }
 
   @Override
   public Result kvget(String key) throws TException {
     if (key == null) { return paramIsNull.make("key"); }
-    if (!map.containsKey(key)) { return keyNotFound.make("kvget", key); }
+    String value = get(key);
+    if (value == null) {
+      accessLog.record(Operation.kvget, kKeyNotFound, key, null);
+      return kvgetMiss;
+    }
 
-    String value = map.get(key);
-    logger.info("kvget: {} = {}", key, value);
+    accessLog.record(Operation.kvget, kSuccess, key, value);
     return new Result(value, kSuccess, "");
   }
 
   @Override
   public Result kvdelete(String key) throws TException {
-    logger.info("kvdelete: {}", key);
+    if (key == null) { return paramIsNull.make("key"); }
+    if (!remove(key)) {
+      accessLog.record(Operation.kvdelete, kKeyNotFound, key, null);
+      return kvdeleteMiss;
+    }
+
+    accessLog.record(Operation.kvdelete, kSuccess, key, null);
+    return success;
+  }
+
+  @Override
+  public Result kvcas(String key, String expected, String value) throws TException {
+    if (key == null) { return paramIsNull.make("key"); }
+    if (value == null) { return paramIsNull.make("value"); }
+    boolean[] swapped = new boolean[1];
+    String current = update(key, previous -> {
+      swapped[0] = Objects.equals(previous, expected);
+      return swapped[0] ? value : previous;
+    });
+    if (swapped[0]) {
+      accessLog.record(Operation.kvcas, kSuccess, key, value);
+      return success;
+    }
+    if (current == null) {
+      accessLog.record(Operation.kvcas, kKeyNotFound, key, null);
+      return kvcasMiss;
+    }
+
+    accessLog.record(Operation.kvcas, kMismatch, key, current);
+    return valueMismatch.make("kvcas").setValue(current);
+  }
 
+  @Override
+  public Result kvincr(String key, long delta) throws TException {
     if (key == null) { return paramIsNull.make("key"); }
-    if (!map.containsKey(key)) { return keyNotFound.make("kvdelete", key); }
+    ErrorResultMaker[] error = new ErrorResultMaker[1];
+    String current = update(key, previous -> {
+      error[0] = null;
+      try {
+        long number = previous == null ? 0 : Long.parseLong(previous);
+        return Long.toString(Math.addExact(number, delta));
+      } catch (NumberFormatException e) {
+        error[0] = notAnInteger;
+      } catch (ArithmeticException e) {
+        error[0] = overflow;
+      }
+      return previous;
+    });
+    if (error[0] != null) {
+      accessLog.record(Operation.kvincr, kError, key, current);
+      return error[0].make("kvincr");
+    }
+
+    accessLog.record(Operation.kvincr, kSuccess, key, current);
+    return new Result(current, kSuccess, "");
+  }
 
-    map.remove(key);
-    return new Result("", kSuccess, "");
+  @Override
+  public List<Result> kvmultiget(List<String> keys) throws TException {
+    if (keys == null) { return Collections.singletonList(paramIsNull.make("keys")); }
+
+    List<Result> results = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      if (key == null) {
+        results.add(paramIsNull.make("key"));
+        continue;
+      }
+      String value = get(key);
+      if (value == null) {
+        accessLog.record(Operation.kvmultiget, kKeyNotFound, key, null);
+        results.add(kvmultigetMiss);
+      } else {
+        accessLog.record(Operation.kvmultiget, kSuccess, key, value);
+        results.add(new Result(value, kSuccess, ""));
+      }
+    }
+    return results;
+  }
+
+  @Override
+  public List<Result> kvmultiset(List<KeyValue> pairs) throws TException {
+    if (pairs == null) { return Collections.singletonList(paramIsNull.make("pairs")); }
+
+    List<Result> results = new ArrayList<>(pairs.size());
+    for (KeyValue pair : pairs) {
+      if (pair == null || pair.key == null) {
+        results.add(paramIsNull.make("key"));
+      } else if (pair.value == null) {
+        results.add(paramIsNull.make("value"));
+      } else if (pair.ttlMillis < 0) {
+        results.add(paramIsNegative.make("ttlMillis"));
+      } else if (pair.ttlMillis > 0 && isDurable) {
+        results.add(ttlUnsupported.make("kvmultiset"));
+      } else {
+        put(pair.key, pair.value, pair.ttlMillis);
+        accessLog.record(Operation.kvmultiset, kSuccess, pair.key, pair.value);
+        results.add(success);
+      }
+    }
+    return results;
+  }
+
+  @Override
+  public List<Result> kvmultidelete(List<String> keys) throws TException {
+    if (keys == null) { return Collections.singletonList(paramIsNull.make("keys")); }
+
+    List<Result> results = new ArrayList<>(keys.size());
+    for (String key : keys) {
+      if (key == null) {
+        results.add(paramIsNull.make("key"));
+      } else if (!remove(key)) {
+        accessLog.record(Operation.kvmultidelete, kKeyNotFound, key, null);
+        results.add(kvmultideleteMiss);
+      } else {
+        accessLog.record(Operation.kvmultidelete, kSuccess, key, null);
+        results.add(success);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Walks the ordered index from the start key or the cursor, skipping keys just removed or
+   * expired, and reads one key past the page to tell whether a cursor is needed
+   */
+  @Override
+  public ScanPage kvscan(String startKey, String endKey, int limit, String cursor) throws TException {
+    if (limit <= 0) { return new ScanPage(paramNotPositive.make("limit"), new ArrayList<>()); }
+    boolean resumes = cursor != null && (startKey == null || cursor.compareTo(startKey) >= 0);
+    int pageSize = Math.min(limit, maxScanLimit);
+
+    List<KeyValue> pairs = new ArrayList<>(Math.min(pageSize, 64));
+    ScanPage page = new ScanPage(success, pairs);
+    for (String key : map.keys(resumes ? cursor : startKey, !resumes, endKey)) {
+      String value = get(key);
+      if (value == null) { continue; }
+      if (pairs.size() == pageSize) {
+        page.setCursor(pairs.get(pageSize - 1).key);
+        break;
+      }
+      pairs.add(new KeyValue(key, value));
+    }
+    accessLog.record(Operation.kvscan, kSuccess, startKey, null);
+    return page;
+  }
+
+  /**
+   * Only backups apply a primary's write log, see {@link BackupHandler}
+   */
+  @Override
+  public long kvreplicate(List<LogEntry> entries, boolean reset, boolean completesCopy) throws TException {
+    logger.error("kvreplicate: not a backup");
+    return -1;
+  }
+
+  /**
+   * Requests are measured by {@link InstrumentedHandler}
+   */
+  @Override
+  public ServerStats kvstats() throws TException {
+    logger.error("kvstats: not instrumented");
+    return new ServerStats(0, new ArrayList<>());
+  }
+
+  /**
+   * The tag is read atomically with the value, see {@link QuorumHandler}
+   */
+  @Override
+  public TaggedValue kvtagget(String key) throws TException {
+    if (key == null) {
+      logger.error("kvtagget: key cannot be null");
+      return new TaggedValue();
+    }
+    TaggedValue[] read = new TaggedValue[1];
+    tags.compute(key, (k, tag) -> {
+      read[0] = new TaggedValue()
+        .setValue(map.get(k))
+        .setTimestamp(tag == null ? 0 : tag.timestamp)
+        .setNodeId(tag == null ? 0 : tag.nodeId);
+      return tag;
+    });
+    return read[0];
+  }
+
+  @Override
+  public boolean kvtagset(String key, TaggedValue tagged) throws TException {
+    if (key == null || tagged == null) {
+      logger.error("kvtagset: key and tagged value cannot be null");
+      return false;
+    }
+    boolean[] stored = new boolean[1];
+    tags.compute(key, (k, tag) -> {
+      if (tag != null && QuorumHandler.compareTags(tagged, tag) <= 0) { return tag; }
+      if (tagged.isSetValue()) {
+        map.put(k, tagged.value);
+      } else {
+        map.remove(k);
+      }
+      stored[0] = true;
+      return new TaggedValue().setTimestamp(tagged.timestamp).setNodeId(tagged.nodeId);
+    });
+    return stored[0];
+  }
+
+  /**
+   * Logged as a kvget
+   */
+  @Override
+  public LeasedResult kvleaseget(String key, String holder) throws TException {
+    if (key == null) { return new LeasedResult(paramIsNull.make("key"), 0); }
+    String[] value = new String[1];
+    int leaseMillis = leases.grant(key, holder, () -> {
+      value[0] = get(key);
+      return leasableMillis(key);
+    });
+    if (value[0] == null) {
+      accessLog.record(Operation.kvget, kKeyNotFound, key, null);
+      return new LeasedResult(kvgetMiss, leaseMillis);
+    }
+
+    accessLog.record(Operation.kvget, kSuccess, key, value[0]);
+    return new LeasedResult(new Result(value[0], kSuccess, ""), leaseMillis);
+  }
+
+  @Override
+  public Invalidations kvinvalidations(String holder, long acked, int waitMillis) throws TException {
+    try {
+      return leases.poll(holder, acked, waitMillis);
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new TException("interrupted while waiting for invalidations");
+    }
+  }
+
+  /**
+   * @return the value, null if the key is absent or expired
+   */
+  private String get(String key) {
+    String value = map.get(key);
+    if (value == null || !hasExpiries) { return value; }
+    TimingWheel.Timer timer = expiries.get(key);
+    return timer != null && timer.deadlineMillis <= nowMillis() ? null : value;
+  }
+
+  /**
+   * @return the longest a lease on the key may last so that it ends before the key expires,
+   *         a millisecond short since the clock is truncated to milliseconds
+   */
+  private int leasableMillis(String key) {
+    if (!hasExpiries) { return Integer.MAX_VALUE; }
+    TimingWheel.Timer timer = expiries.get(key);
+    if (timer == null) { return Integer.MAX_VALUE; }
+    return (int) Math.max(0, Math.min(Integer.MAX_VALUE, timer.deadlineMillis - nowMillis() - 1));
+  }
+
+  /**
+   * @param ttlMillis 0 for a key that never expires
+   */
+  private void put(String key, String value, long ttlMillis) {
+    if (ttlMillis == 0 && !hasExpiries) {
+      store(key, value);
+      // a TTL may have been set on the key meanwhile, before or after this value was stored:
+      // the write is then completed as if it came last, storing the value again without the
+      // timer, since nothing tells whether the timer is stale
+      if (hasExpiries) {
+        expiries.computeIfPresent(key, (k, timer) -> {
+          wheel.cancel(timer);
+          store(k, value);
+          return null;
+        });
+      }
+      return;
+    }
+    if (ttlMillis > 0) { startExpiring(); }
+    long deadline = nowMillis() + ttlMillis;
+    // no lease is granted from the store of the value until its timer is in place, which
+    // would otherwise be read with the previous timer, or none
+    leases.revoke(key);
+    try {
+      expiries.compute(key, (k, timer) -> {
+        if (timer != null) { wheel.cancel(timer); }
+        store(k, value);
+        return ttlMillis > 0 ? wheel.schedule(k, deadline) : null;
+      });
+    } finally {
+      leases.release(key);
+    }
+  }
+
+  /**
+   * @return whether a key was removed, not counting an expired one
+   */
+  private boolean remove(String key) {
+    if (!hasExpiries) { return map.remove(key) != null; }
+    boolean[] removed = new boolean[1];
+    expiries.compute(key, (k, timer) -> {
+      if (timer != null) { wheel.cancel(timer); }
+      removed[0] = map.remove(k) != null && (timer == null || timer.deadlineMillis > nowMillis());
+      return null;
+    });
+    return removed[0];
+  }
+
+  /**
+   * Atomically replace the value of a key by a function of it, the read-modify-write of
+   * kvcas and kvincr. An expired key counts as absent, and the expiry of a live one is kept.
+   *
+   * @param function may run several times, returns its argument to leave the key untouched,
+   *                 and never returns null
+   * @return the value left in the map, null if absent
+   */
+  private String update(String key, UnaryOperator<String> function) {
+    if (!hasExpiries) { return compute(key, function); }
+    String[] current = new String[1];
+    expiries.compute(key, (k, timer) -> {
+      if (timer != null && timer.deadlineMillis <= nowMillis()) {
+        wheel.cancel(timer);
+        map.remove(k);
+        timer = null;
+      }
+      current[0] = compute(k, function);
+      return timer;
+    });
+    return current[0];
+  }
+
+  /**
+   * A ConcurrentHashMap, or an unsynchronized map, computes in place. Other concurrent maps
+   * are updated with their atomic putIfAbsent and replace, and a retry only follows a
+   * concurrent write of the key. In both cases an untouched key is not written, so that
+   * failed comparisons neither reach the log, the backups nor the leases.
+   */
+  private String compute(String key, UnaryOperator<String> function) {
+    if (map.computesInPlace()) {
+      return map.compute(key, (k, previous) -> function.apply(previous));
+    }
+    while (true) {
+      String previous = map.get(key);
+      String next = function.apply(previous);
+      if (next == previous) { return previous; }
+      if (previous == null ? map.putIfAbsent(key, next) == null : map.replace(key, previous, next)) {
+        return next;
+      }
+    }
+  }
+
+  private synchronized void startExpiring() {
+    if (hasExpiries) { return; }
+    hasExpiries = true;
+    delayed.scheduleWithFixedDelay(() -> wheel.advance(nowMillis(), this::expire),
+      expiryTickMillis, expiryTickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Remove the key of a timer that is still current
+   */
+  private void expire(TimingWheel.Timer timer) {
+    expiries.computeIfPresent(timer.key, (k, current) -> {
+      if (current != timer) { return current; }
+      map.remove(k);
+      return null;
+    });
+  }
+
+  private static long nowMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+  }
+
+  private void store(String key, String value) {
+    if (isBuggy && ThreadLocalRandom.current().nextInt(10) == 0) {
+        int delay = ThreadLocalRandom.current().nextInt(2);
+        delayed.schedule(() -> map.put(key, value), delay, TimeUnit.MILLISECONDS);
+    } else {
+      map.put(key, value);
+    }
   }
 
 }
@@ -1,14 +1,44 @@
 package dsf16;
 
+import argparse.ArgumentParseException;
+import argparse.ArgumentParser;
+import argparse.argument.FieldSetter;
+import argparse.argument.ListSetter;
+import argparse.option.SingleOption;
+import argparse.type.TypeBuilderRegistry;
+import kvclient.ConnectionPool;
+import kvclient.Connector;
+import kvclient.VirtualThreads;
 import kvstore.KVStore;
 import kvstore.KVStore.Processor;
 import org.apache.thrift.server.TServer;
 import org.apache.thrift.server.TThreadPoolServer;
+import org.apache.thrift.server.TThreadedSelectorServer;
+import org.apache.thrift.transport.TFramedTransport;
+import org.apache.thrift.transport.TNonblockingServerSocket;
+import org.apache.thrift.transport.TNonblockingServerTransport;
 import org.apache.thrift.transport.TServerSocket;
 import org.apache.thrift.transport.TServerTransport;
 import org.apache.thrift.transport.TTransportException;
+import org.apache.thrift.transport.TTransportFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import storage.LogStructuredMap;
+import storage.OffHeapMap;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * The server hosting "kvstore" thrift service for RPC callers
@@ -17,28 +47,424 @@ public class KVStoreServer {
 
   private static final Logger logger = LoggerFactory.getLogger(KVStoreServer.class);
 
-  private static Processor<KVStore.Iface> processor;
+  /**
+   * How connections are served.
+   * <ul>
+   *   <li>threadpool: blocking sockets, one pooled thread per connected client</li>
+   *   <li>selector: non-blocking sockets multiplexed by a few selector threads, requests
+   *   executed on a fixed worker pool; clients must use framed transport</li>
+   *   <li>virtual: blocking sockets, one virtual thread per connected client, so that tens of
+   *   thousands of clients may stay connected; requires Java 21</li>
+   * </ul>
+   */
+  enum Mode { threadpool, selector, virtual }
+
+  /**
+   * When a primary acknowledges a write.
+   * <ul>
+   *   <li>sync: once every in-sync backup has applied it</li>
+   *   <li>async: once applied locally, backups catch up in the background</li>
+   * </ul>
+   */
+  enum Ack { sync, async }
+
+  private static final ArgumentParser parser = new ArgumentParser();
+  static {
+    TypeBuilderRegistry.register(URI.class, s -> URI.create("my://" + s));
+
+    parser
+      .addOption(new SingleOption("-port", new FieldSetter("port", o -> ((int)o) > 0)))
+      .optional(true)
+      .argPlaceholder("PORT")
+      .description("Set the listening port, 9090 by default");
+
+    parser
+      .addOption(new SingleOption("-buggy", new FieldSetter("isBuggy").set(true)))
+      .optional(true)
+      .description("Run in buggy mode, which occasionally delays writes to break atomicity");
+
+    parser
+      .addOption(new SingleOption("-datadir", new FieldSetter("dataDirectory")))
+      .optional(true)
+      .argPlaceholder("DIR")
+      .description("Persist the store as a segment log in DIR, in memory only by default");
+
+    parser
+      .addOption(new SingleOption("-segment", new FieldSetter("segmentMegabytes", o -> ((int)o) > 0 && ((int)o) < 2048)))
+      .optional(true)
+      .argPlaceholder("MB")
+      .description("Set the size of each log segment file in megabytes");
+
+    parser
+      .addOption(new SingleOption("-snapshot", new FieldSetter("snapshotIntervalSeconds", o -> ((int)o) > 0)))
+      .optional(true)
+      .argPlaceholder("SECS")
+      .description("Snapshot the store every SECS seconds to speed up restarts, requires -datadir");
+
+    parser
+      .addOption(new SingleOption("-offheap", new FieldSetter("isOffHeap").set(true)))
+      .optional(true)
+      .description("Keep keys and values off the Java heap, in direct memory slabs");
+
+    parser
+      .addOption(new SingleOption("-shards", new FieldSetter("shardCount", o -> ((int)o) > 0)))
+      .optional(true)
+      .argPlaceholder("NUM")
+      .description("Partition the key space into NUM shards, each served by its own thread; memory only");
+
+    parser
+      .addOption(new SingleOption("-backups", new ListSetter("backups", URI.class,
+        o -> ((List<?>)o).stream().allMatch(uri -> ((URI)uri).getHost() != null && ((URI)uri).getPort() != -1))))
+      .optional(true)
+      .argPlaceholder("HOST:PORT...")
+      .description("Run as a primary replicating its writes to the given backups");
+
+    parser
+      .addOption(new SingleOption("-primary", new FieldSetter("primary",
+        o -> ((URI)o).getHost() != null && ((URI)o).getPort() != -1)))
+      .optional(true)
+      .argPlaceholder("HOST:PORT")
+      .description("Run as a backup of the given primary, serving reads and forwarding writes");
+
+    parser
+      .addOption(new SingleOption("-ack", new FieldSetter("ack")))
+      .optional(true)
+      .argPlaceholder("sync|async")
+      .description("Set whether a primary waits for its backups before acknowledging writes, sync by default");
+
+    parser
+      .addOption(new SingleOption("-quorum", new ListSetter("quorum", URI.class,
+        o -> ((List<?>)o).stream().allMatch(uri -> ((URI)uri).getHost() != null && ((URI)uri).getPort() != -1))))
+      .optional(true)
+      .argPlaceholder("HOST:PORT...")
+      .description("Run as a replica of a majority-quorum group, given the other replicas");
+
+    parser
+      .addOption(new SingleOption("-nodeid", new FieldSetter("nodeId", o -> ((int)o) > 0)))
+      .optional(true)
+      .argPlaceholder("NUM")
+      .description("Set the id of this replica, unique in its quorum group, the port by default");
+
+    parser
+      .addOption(new SingleOption("-lease", new FieldSetter("leaseMillis", o -> ((int)o) > 0)))
+      .optional(true)
+      .argPlaceholder("MILLIS")
+      .description("Grant client near caches read leases of MILLIS milliseconds, none by default");
+
+    parser
+      .addOption(new SingleOption("-accesslog", new FieldSetter("accessLogFile")))
+      .optional(true)
+      .argPlaceholder("FILE")
+      .description("Append sampled requests to FILE in binary format");
+
+    parser
+      .addOption(new SingleOption("-sample", new ListSetter("samplingRates", String.class,
+        o -> ((List<?>)o).stream().allMatch(rate -> ((String)rate).matches("\\w+=(0(\\.\\d+)?|1(\\.0+)?)")))))
+      .optional(true)
+      .argPlaceholder("OP=RATE...")
+      .description("Set the access log sampling rate in [0, 1] per operation, e.g. kvget=0.01 kvset=1");
+
+    parser
+      .addOption(new SingleOption("-mode", new FieldSetter("mode")))
+      .optional(true)
+      .argPlaceholder("threadpool|selector|virtual")
+      .description("Set the connection serving mode, threadpool by default");
+
+    parser
+      .addOption(new SingleOption("-selectors", new FieldSetter("selectorThreads", o -> ((int)o) > 0)))
+      .optional(true)
+      .argPlaceholder("NUM")
+      .description("Set the number of selector threads in selector mode");
+
+    parser
+      .addOption(new SingleOption("-workers", new FieldSetter("workerThreads", o -> ((int)o) > 0)))
+      .optional(true)
+      .argPlaceholder("NUM")
+      .description("Set the number of request worker threads in selector mode");
+
+    parser
+      .addOption(new SingleOption("-protocol", new FieldSetter("protocol")))
+      .optional(true)
+      .argPlaceholder("binary|compact")
+      .description("Set the protocol of clients and replication peers, binary by default");
+
+    parser
+      .addOption(new SingleOption("-transport", new FieldSetter("transport")))
+      .optional(true)
+      .argPlaceholder("buffered|framed")
+      .description("Set the transport of clients and replication peers, framed in selector mode, buffered otherwise");
+
+    parser
+      .addOption(new SingleOption("-frame", new FieldSetter("maxFrameBytes", o -> ((int)o) > 0)))
+      .optional(true)
+      .argPlaceholder("BYTES")
+      .description("Set the largest frame accepted with framed transport");
+  }
+
+  private int port = 9090;
+
+  private boolean isBuggy = false;
+
+  private String dataDirectory;
+
+  private int segmentMegabytes = LogStructuredMap.defaultSegmentBytes / 1024 / 1024;
+
+  private int snapshotIntervalSeconds = 0;
+
+  private boolean isOffHeap = false;
+
+  private int shardCount = 0;
+
+  private List<URI> backups;
+
+  private URI primary;
+
+  private Ack ack = Ack.sync;
+
+  private List<URI> quorum;
+
+  /** 0 for the port */
+  private int nodeId = 0;
+
+  private int leaseMillis = 0;
+
+  private String accessLogFile;
+
+  private List<String> samplingRates;
+
+  private Mode mode = Mode.threadpool;
+
+  private int selectorThreads = 2;
+
+  private int workerThreads = Runtime.getRuntime().availableProcessors() * 2;
+
+  private Connector.Protocol protocol = Connector.Protocol.binary;
+
+  private Connector.Transport transport;
+
+  private int maxFrameBytes = Connector.defaultMaxFrameBytes;
 
   public static void main(String[] args) {
-    KVStore.Iface handler;
-    boolean isBuggy = false;
-    // example ./kvserver 9091 buggy
-    if (args.length >= 2 && args[1].equals("buggy")) {
+    new KVStoreServer().doMain(args);
+  }
+
+  private void doMain(String[] args) {
+    // example ./kvserver -port 9091 -buggy -mode selector -datadir data
+    try {
+      parser.parse(this, args);
+    } catch (ArgumentParseException e) {
+      System.err.println("ERROR: " + e.getMessage() + "\n");
+      parser.printUsage("USAGE: kvserver");
+      System.exit(-1);
+    }
+
+    if (snapshotIntervalSeconds > 0 && dataDirectory == null) {
+      System.err.println("ERROR: -snapshot requires -datadir\n");
+      parser.printUsage("USAGE: kvserver");
+      System.exit(-1);
+    }
+
+    if (shardCount > 0 && dataDirectory != null) {
+      System.err.println("ERROR: -shards cannot be combined with -datadir\n");
+      parser.printUsage("USAGE: kvserver");
+      System.exit(-1);
+    }
+
+    if (backups != null && primary != null) {
+      System.err.println("ERROR: a server is either a primary or a backup\n");
+      parser.printUsage("USAGE: kvserver");
+      System.exit(-1);
+    }
+
+    if ((backups != null || primary != null) && shardCount > 0) {
+      System.err.println("ERROR: replication cannot be combined with -shards\n");
+      parser.printUsage("USAGE: kvserver");
+      System.exit(-1);
+    }
+
+    if (quorum != null && (backups != null || primary != null || shardCount > 0 || dataDirectory != null)) {
+      System.err.println("ERROR: -quorum cannot be combined with -backups, -primary, -shards or -datadir\n");
+      parser.printUsage("USAGE: kvserver");
+      System.exit(-1);
+    }
+
+    if (leaseMillis > 0 && (primary != null || quorum != null || shardCount > 0)) {
+      System.err.println("ERROR: -lease cannot be combined with -primary, -quorum or -shards\n");
+      parser.printUsage("USAGE: kvserver");
+      System.exit(-1);
+    }
+
+    if (transport == null) {
+      transport = mode == Mode.selector ? Connector.Transport.framed : Connector.Transport.buffered;
+    } else if (transport != Connector.Transport.framed && mode == Mode.selector) {
+      System.err.println("ERROR: selector mode requires framed transport\n");
+      parser.printUsage("USAGE: kvserver");
+      System.exit(-1);
+    }
+
+    if (mode == Mode.virtual && !VirtualThreads.isAvailable()) {
+      System.err.println("ERROR: virtual mode is unavailable, " + VirtualThreads.unavailableReason() + "\n");
+      parser.printUsage("USAGE: kvserver");
+      System.exit(-1);
+    }
+
+    if (isBuggy) {
       logger.info("Running in buggy mode");
-      isBuggy = true;
     }
-    handler = new KVStoreHandler(isBuggy);
-    processor = new Processor<>(handler);
-    final int port = args.length > 0 ? Integer.parseInt(args[0]) : 9090;
-    new Thread(() -> serve(processor, port)).start();
+    KVStore.Iface handler;
+    if (shardCount > 0) {
+      logger.info("Serving from {} shards", shardCount);
+      handler = new ShardedHandler(shardCount,
+        isOffHeap ? () -> new OffHeapMap(1, OffHeapMap.defaultSlabBytes) : HashMap::new, isBuggy, openAccessLog());
+    } else {
+      Map<String, String> store;
+      if (dataDirectory != null) {
+        store = openStore();
+      } else if (isOffHeap) {
+        store = new OffHeapMap();
+      } else {
+        store = isBuggy && quorum == null ? new HashMap<>() : new ConcurrentHashMap<>();
+      }
+      if (backups != null) {
+        logger.info("Replicating to {} with {} acknowledgement", authorities(backups), ack);
+        store = new ReplicatedMap(store, addresses(backups), peerConnector(), ack == Ack.sync);
+      }
+      Leases leases = Leases.disabled();
+      if (leaseMillis > 0) {
+        logger.info("Granting read leases of {} ms", leaseMillis);
+        leases = new Leases(leaseMillis);
+        store = new LeasedMap(store, leases);
+      }
+      // shared by the handler and the backup, which both write the store
+      store = new IndexedMap(store);
+      KVStoreHandler local = new KVStoreHandler(store, isBuggy, openAccessLog(), Executors.newScheduledThreadPool(20), leases,
+        dataDirectory != null);
+      handler = local;
+      if (primary != null) {
+        logger.info("Backing up {}", primary.getAuthority());
+        ConnectionPool pool = new ConnectionPool(peerConnector()).maxActive(32).maxIdle(32);
+        handler = new BackupHandler(handler, store, pool, addresses(Collections.singletonList(primary)).get(0));
+      }
+      if (quorum != null) {
+        int id = nodeId > 0 ? nodeId : port;
+        logger.info("Replica {} of a quorum group with {}", id, authorities(quorum));
+        ConnectionPool pool = new ConnectionPool(peerConnector()).maxActive(64).maxIdle(64);
+        handler = new QuorumHandler(local, addresses(quorum), pool, id);
+      }
+    }
+    Processor<KVStore.Iface> processor = new Processor<>(new InstrumentedHandler(handler));
+    new Thread(() -> serve(processor)).start();
   }
 
-  private static void serve(Processor<KVStore.Iface> processor, int port) {
+  private LogStructuredMap openStore() {
     try {
-      TServerTransport transport = new TServerSocket(port);
-      TServer server = new TThreadPoolServer(new TThreadPoolServer.Args(transport).processor(processor));
+      logger.info("Recovering store from {} ...", dataDirectory);
+      LogStructuredMap store = new LogStructuredMap(Paths.get(dataDirectory), segmentMegabytes * 1024 * 1024,
+        isOffHeap ? new OffHeapMap() : new ConcurrentHashMap<>());
+      logger.info("Recovered {} keys", store.size());
+      if (snapshotIntervalSeconds > 0) {
+        scheduleSnapshots(store);
+      }
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          store.close();
+        } catch (IOException e) {
+          logger.error(e.getMessage());
+        }
+      }));
+      return store;
+
+    } catch (IOException e) {
+      logger.error("Failed to open store: {}", e.getMessage());
+      System.exit(2);
+      return null;
+    }
+  }
+
+  /**
+   * Every node of a replicated group is expected to run with the same protocol and transport
+   */
+  private Connector peerConnector() {
+    return new Connector().protocol(protocol).transport(transport).maxFrameBytes(maxFrameBytes);
+  }
 
-      logger.info("Starting kvstore server at {} ...", port);
+  private static List<String> authorities(List<URI> uris) {
+    return uris.stream().map(URI::getAuthority).collect(Collectors.toList());
+  }
+
+  private static List<InetSocketAddress> addresses(List<URI> uris) {
+    return uris.stream()
+      .map(uri -> InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort()))
+      .collect(Collectors.toList());
+  }
+
+  private AccessLog openAccessLog() {
+    if (accessLogFile == null) { return AccessLog.disabled(); }
+
+    Map<Operation, Double> sampling = AccessLog.uniform(1.0);
+    if (samplingRates != null) {
+      sampling.clear();
+      for (String rate : samplingRates) {
+        String[] parts = rate.split("=");
+        try {
+          sampling.put(Operation.valueOf(parts[0]), Double.parseDouble(parts[1]));
+        } catch (IllegalArgumentException e) {
+          System.err.println("ERROR: not an operation '" + parts[0] + "'\n");
+          parser.printUsage("USAGE: kvserver");
+          System.exit(-1);
+        }
+      }
+    }
+
+    try {
+      AccessLog accessLog = new AccessLog(Paths.get(accessLogFile), 1 << 16, sampling);
+      logger.info("Access log: {}, sampling: {}", accessLogFile, sampling);
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+        try {
+          accessLog.close();
+        } catch (IOException e) {
+          logger.error(e.getMessage());
+        }
+      }));
+      return accessLog;
+
+    } catch (IOException e) {
+      logger.error("Failed to open access log: {}", e.getMessage());
+      System.exit(2);
+      return null;
+    }
+  }
+
+  private void scheduleSnapshots(LogStructuredMap store) {
+    ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor();
+    snapshotter.scheduleWithFixedDelay(() -> {
+      try {
+        long start = System.currentTimeMillis();
+        long keys = store.checkpoint();
+        logger.info("Snapshot of {} keys taken in {} ms", keys, System.currentTimeMillis() - start);
+      } catch (IOException e) {
+        logger.error("Failed to take snapshot: {}", e.getMessage());
+      }
+    }, snapshotIntervalSeconds, snapshotIntervalSeconds, TimeUnit.SECONDS);
+  }
+
+  private void serve(Processor<KVStore.Iface> processor) {
+    try {
+      TServer server;
+      switch (mode) {
+        case selector:
+          server = selectorServer(processor);
+          break;
+        case virtual:
+          server = virtualServer(processor);
+          break;
+        case threadpool:
+        default:
+          server = threadPoolServer(processor);
+      }
+
+      logger.info("Starting kvstore server at {} in {} mode, {} protocol over {} transport...",
+        port, mode, protocol, transport);
       server.serve();
 
     } catch (TTransportException e) {
@@ -46,4 +472,39 @@ public class KVStoreServer {
       e.printStackTrace();
     }
   }
+
+  private TServer threadPoolServer(Processor<KVStore.Iface> processor) throws TTransportException {
+    return new TThreadPoolServer(blockingServerArgs(processor));
+  }
+
+  /**
+   * Like threadpool mode, with a virtual thread started for every connection instead of a
+   * pooled one
+   */
+  private TServer virtualServer(Processor<KVStore.Iface> processor) throws TTransportException {
+    return new TThreadPoolServer(blockingServerArgs(processor)
+      .executorService(VirtualThreads.newPerTaskExecutor("kvstore-connection-")));
+  }
+
+  private TThreadPoolServer.Args blockingServerArgs(Processor<KVStore.Iface> processor) throws TTransportException {
+    TServerTransport socket = new TServerSocket(port);
+    return new TThreadPoolServer.Args(socket)
+      .processor(processor)
+      .protocolFactory(protocol.factory())
+      .transportFactory(transport == Connector.Transport.framed
+        ? new TFramedTransport.Factory(maxFrameBytes) : new TTransportFactory());
+  }
+
+  private TServer selectorServer(Processor<KVStore.Iface> processor) throws TTransportException {
+    TNonblockingServerTransport socket = new TNonblockingServerSocket(port);
+    logger.info("Selector threads: {}, worker threads: {}", selectorThreads, workerThreads);
+    TThreadedSelectorServer.Args args = new TThreadedSelectorServer.Args(socket)
+      .processor(processor)
+      .protocolFactory(protocol.factory())
+      .selectorThreads(selectorThreads)
+      .workerThreads(workerThreads);
+    // bounds the frames being read on all connections together, so any larger frame too
+    args.maxReadBufferBytes = maxFrameBytes;
+    return new TThreadedSelectorServer(args);
+  }
 }
@@ -0,0 +1,91 @@
+package dsf16;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A lock-free latency histogram in fixed memory, bucketed like HdrHistogram: values below
+ * 128 ns are counted exactly, and every power of two above is split into 128 linear
+ * sub-buckets, so any recorded value is known to within 1%. Values up to 2^40 ns (about 18
+ * minutes) take 4352 counters; longer ones are counted as the maximum.</p>
+ *
+ * <p>Recording is a single atomic increment. Percentiles are read from a snapshot of the
+ * counters taken while recording goes on.</p>
+ */
+class LatencyHistogram {
+
+  private static final int subBucketBits = 7;
+
+  private static final int subBuckets = 1 << subBucketBits;
+
+  private static final int maxExponent = 40;
+
+  private static final long maxValue = (1L << maxExponent) - 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(index(maxValue) + 1);
+
+  void record(long nanos) {
+    counts.incrementAndGet(index(Math.min(Math.max(nanos, 0), maxValue)));
+  }
+
+  Snapshot snapshot() {
+    long[] copy = new long[counts.length()];
+    for (int i = 0; i < copy.length; i++) { copy[i] = counts.get(i); }
+    return new Snapshot(copy);
+  }
+
+  static final class Snapshot {
+    private final long[] counts;
+    private final long total;
+
+    private Snapshot(long[] counts) {
+      this.counts = counts;
+      long sum = 0;
+      for (long count : counts) { sum += count; }
+      total = sum;
+    }
+
+    long count() {
+      return total;
+    }
+
+    /**
+     * @param quantile in [0, 1], e.g. 0.99
+     * @return the highest value of the bucket holding the quantile, 0 if nothing was recorded
+     */
+    long valueAt(double quantile) {
+      if (total == 0) { return 0; }
+      long rank = Math.max(1, (long) Math.ceil(quantile * total));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) { return highestValue(i); }
+      }
+      return highestValue(counts.length - 1);
+    }
+
+    long max() {
+      for (int i = counts.length - 1; i >= 0; i--) {
+        if (counts[i] > 0) { return highestValue(i); }
+      }
+      return 0;
+    }
+  }
+
+  /**
+   * Values below 128 index themselves. Above, the exponent selects a run of 128 buckets and
+   * the 7 bits below the leading one select the bucket within it.
+   */
+  static int index(long value) {
+    if (value < subBuckets) { return (int) value; }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - subBucketBits;
+    return ((shift + 1) << subBucketBits) + (int) ((value >>> shift) - subBuckets);
+  }
+
+  static long highestValue(int index) {
+    if (index < subBuckets) { return index; }
+    int shift = (index >>> subBucketBits) - 1;
+    long lowest = ((long) (index & (subBuckets - 1)) + subBuckets) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+}
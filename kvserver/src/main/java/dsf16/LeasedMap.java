@@ -0,0 +1,87 @@
+package dsf16;
+
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * The store of a server granting read leases: every mutation first revokes the leases on
+ * its key, see {@link Leases}, so that no near cache serves the previous value once the
+ * mutation is visible.
+ */
+class LeasedMap extends AbstractMap<String, String> implements ConcurrentMap<String, String> {
+
+  private final Map<String, String> map;
+
+  private final Leases leases;
+
+  LeasedMap(Map<String, String> map, Leases leases) {
+    this.map = map;
+    this.leases = leases;
+  }
+
+  @Override
+  public String get(Object key) {
+    return map.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return map.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public String put(String key, String value) {
+    return write(key, () -> map.put(key, value));
+  }
+
+  @Override
+  public String remove(Object key) {
+    return write((String) key, () -> map.remove(key));
+  }
+
+  @Override
+  public String putIfAbsent(String key, String value) {
+    return write(key, () -> map.putIfAbsent(key, value));
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    return write((String) key, () -> map.remove(key, value));
+  }
+
+  @Override
+  public boolean replace(String key, String oldValue, String newValue) {
+    return write(key, () -> map.replace(key, oldValue, newValue));
+  }
+
+  @Override
+  public String replace(String key, String value) {
+    return write(key, () -> map.replace(key, value));
+  }
+
+  /**
+   * A read-only view of the map
+   */
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    return Collections.unmodifiableMap(map).entrySet();
+  }
+
+  private <R> R write(String key, Supplier<R> mutation) {
+    leases.revoke(key);
+    try {
+      return mutation.get();
+    } finally {
+      leases.release(key);
+    }
+  }
+}
@@ -0,0 +1,245 @@
+package dsf16;
+
+import kvstore.Invalidations;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+
+/**
+ * <p>Read leases granted to client near caches. A holder, identified by a unique id, may
+ * serve a key from its cache until its lease expires. A write to a leased key first revokes
+ * the lease: it queues an invalidation for every holder and waits, before changing the key,
+ * until each one has acknowledged it or its lease has expired. No lease is granted on a key
+ * while a write to it is waiting.</p>
+ *
+ * <p>Holders collect their invalidations with long polls, acknowledging the previous batch
+ * with each poll. A holder that stops polling only delays writes until its leases expire.
+ * A lease expires on the server no earlier than on the holder, which counts its duration
+ * from before sending the read. A lease is shortened to end before the value read expires,
+ * so that no holder serves a value the server already hides.</p>
+ */
+class Leases implements Closeable {
+
+  /**
+   * Waits on a lock rather than a monitor, so that long polls served by virtual threads
+   * unmount from their carriers
+   */
+  private static class Holder {
+    final ReentrantLock lock = new ReentrantLock();
+    final Condition invalidated = lock.newCondition();
+    final Condition acknowledged = lock.newCondition();
+    /** sequence number and key of every unacknowledged invalidation, in order */
+    final Deque<Object[]> pending = new ArrayDeque<>();
+    long acked = 0;
+    volatile long lastSeenNanos = System.nanoTime();
+
+    /**
+     * @return the sequence number of the invalidation, numbered under the lock so that
+     *         pending ones stay in order
+     */
+    long invalidate(String key, AtomicLong sequence) {
+      lock.lock();
+      try {
+        long invalidation = sequence.incrementAndGet();
+        pending.addLast(new Object[] { invalidation, key });
+        invalidated.signalAll();
+        return invalidation;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    void awaitAcknowledged(long sequence, long deadlineNanos) throws InterruptedException {
+      lock.lock();
+      try {
+        long remaining;
+        while (acked < sequence && (remaining = deadlineNanos - System.nanoTime()) > 0) {
+          acknowledged.awaitNanos(remaining);
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    Invalidations poll(long acknowledging, int waitMillis) throws InterruptedException {
+      lock.lock();
+      try {
+        lastSeenNanos = System.nanoTime();
+        if (acknowledging > acked) {
+          acked = acknowledging;
+          while (!pending.isEmpty() && (long) pending.peekFirst()[0] <= acked) { pending.pollFirst(); }
+          acknowledged.signalAll();
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        while (pending.isEmpty() && remaining > 0) {
+          remaining = invalidated.awaitNanos(remaining);
+        }
+        lastSeenNanos = System.nanoTime();
+
+        List<String> keys = new ArrayList<>(pending.size());
+        for (Object[] invalidation : pending) { keys.add((String) invalidation[1]); }
+        return new Invalidations(keys, pending.isEmpty() ? acked : (long) pending.peekLast()[0]);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /** the leases on a key, guarded by the map entry */
+  private static class KeyLeases {
+    int writers = 0;
+    final Map<Holder, Long> expiries = new HashMap<>();
+    /** the sequence number and lease expiry of the invalidations the writers wait for */
+    final Map<Holder, long[]> revoked = new HashMap<>();
+  }
+
+  private final int leaseMillis;
+
+  private final long leaseNanos;
+
+  private final ConcurrentMap<String, Holder> holders = new ConcurrentHashMap<>();
+
+  private final ConcurrentMap<String, KeyLeases> keys = new ConcurrentHashMap<>();
+
+  /** numbers invalidations across holders, so that a forgotten holder never reuses one */
+  private final AtomicLong sequence = new AtomicLong();
+
+  private final ScheduledExecutorService sweeper;
+
+  /**
+   * @return leases that are never granted
+   */
+  static Leases disabled() {
+    return new Leases(0);
+  }
+
+  /**
+   * @param leaseMillis the duration of every lease, 0 to never grant one
+   */
+  Leases(int leaseMillis) {
+    this.leaseMillis = leaseMillis;
+    leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+    if (leaseMillis == 0) {
+      sweeper = null;
+      return;
+    }
+    sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "lease-sweeper");
+      thread.setDaemon(true);
+      return thread;
+    });
+    sweeper.scheduleWithFixedDelay(this::sweep, leaseMillis, leaseMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Run the read of a key and lease it to the holder, atomically with respect to writes
+   *
+   * @param read returns the longest lease the value read allows, 0 for none
+   * @return the lease duration granted, 0 if none
+   */
+  int grant(String key, String holderId, IntSupplier read) {
+    if (leaseMillis == 0 || holderId == null) {
+      read.getAsInt();
+      return 0;
+    }
+    Holder holder = holders.computeIfAbsent(holderId, id -> new Holder());
+    holder.lastSeenNanos = System.nanoTime();
+    int[] granted = new int[1];
+    keys.compute(key, (k, leases) -> {
+      int millis = Math.min(read.getAsInt(), leaseMillis);
+      if (millis <= 0 || leases != null && leases.writers > 0) { return leases; }
+      if (leases == null) { leases = new KeyLeases(); }
+      leases.expiries.put(holder, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+      granted[0] = millis;
+      return leases;
+    });
+    return granted[0];
+  }
+
+  /**
+   * Invalidate the key at every holder of an unexpired lease and wait until they have all
+   * acknowledged it or their leases have expired, including the invalidations of concurrent
+   * writers to the key. No lease is granted on the key until the matching
+   * {@link #release(String)}.
+   */
+  void revoke(String key) {
+    if (leaseMillis == 0) { return; }
+    Map<Holder, long[]> revoked = new HashMap<>();
+    keys.compute(key, (k, leases) -> {
+      if (leases == null) { leases = new KeyLeases(); }
+      leases.writers++;
+      long now = System.nanoTime();
+      for (Map.Entry<Holder, Long> lease : leases.expiries.entrySet()) {
+        if (lease.getValue() - now > 0) {
+          Holder holder = lease.getKey();
+          leases.revoked.put(holder, new long[] { holder.invalidate(key, sequence), lease.getValue() });
+        }
+      }
+      leases.expiries.clear();
+      revoked.putAll(leases.revoked);
+      return leases;
+    });
+
+    try {
+      for (Map.Entry<Holder, long[]> revocation : revoked.entrySet()) {
+        revocation.getKey().awaitAcknowledged(revocation.getValue()[0], revocation.getValue()[1]);
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Let leases on the key be granted again once no write to it is pending
+   */
+  void release(String key) {
+    if (leaseMillis == 0) { return; }
+    keys.computeIfPresent(key, (k, leases) -> {
+      if (--leases.writers > 0) { return leases; }
+      leases.revoked.clear();
+      return leases.expiries.isEmpty() ? null : leases;
+    });
+  }
+
+  /**
+   * Acknowledge the invalidations of a holder up to a sequence number and wait for new ones
+   */
+  Invalidations poll(String holderId, long acked, int waitMillis) throws InterruptedException {
+    if (leaseMillis == 0 || holderId == null) { return new Invalidations(new ArrayList<>(), acked); }
+    Holder holder = holders.computeIfAbsent(holderId, id -> new Holder());
+    return holder.poll(acked, Math.min(Math.max(waitMillis, 0), leaseMillis));
+  }
+
+  /**
+   * Forget expired leases, and holders that have neither polled nor read for a while
+   */
+  private void sweep() {
+    long now = System.nanoTime();
+    for (String key : keys.keySet()) {
+      keys.computeIfPresent(key, (k, leases) -> {
+        leases.expiries.values().removeIf(expiry -> expiry - now <= 0);
+        return leases.writers == 0 && leases.expiries.isEmpty() ? null : leases;
+      });
+    }
+    holders.values().removeIf(holder -> now - holder.lastSeenNanos > 2 * leaseNanos);
+  }
+
+  @Override
+  public void close() {
+    if (sweeper != null) { sweeper.shutdownNow(); }
+  }
+}
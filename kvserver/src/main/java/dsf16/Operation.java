@@ -0,0 +1,8 @@
+package dsf16;
+
+/**
+ * The RPC operations served by {@link KVStoreHandler}
+ */
+enum Operation {
+  kvset, kvget, kvdelete, kvmultiget, kvmultiset, kvmultidelete, kvcas, kvincr, kvscan
+}
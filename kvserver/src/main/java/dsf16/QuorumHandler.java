@@ -0,0 +1,290 @@
+package dsf16;
+
+import kvclient.ConnectionPool;
+import kvstore.Invalidations;
+import kvstore.KVStore;
+import kvstore.KeyValue;
+import kvstore.LeasedResult;
+import kvstore.LogEntry;
+import kvstore.Result;
+import kvstore.ScanPage;
+import kvstore.ServerStats;
+import kvstore.TaggedValue;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static kvstore.ErrorCode.kError;
+import static kvstore.ErrorCode.kKeyNotFound;
+import static kvstore.ErrorCode.kSuccess;
+import static org.slf4j.event.Level.DEBUG;
+import static org.slf4j.event.Level.ERROR;
+
+/**
+ * <p>Serves a replica of a quorum-replicated register, in the style of the ABD algorithm.
+ * Every server of the group coordinates the requests it receives: each phase is sent to all
+ * replicas in parallel, itself included, and completes as soon as a majority has answered.
+ * Values carry a {@code (timestamp, nodeId)} tag kept by {@link KVStoreHandler}.</p>
+ *
+ * <ul>
+ *   <li>A write first queries a majority for the highest timestamp, then stores the value
+ *   under the next timestamp and its own node id on a majority.</li>
+ *   <li>A read queries a majority and returns the value with the highest tag. Only if the
+ *   answers disagree is that value written back to a majority first, so that no later read
+ *   can return an older one.</li>
+ * </ul>
+ *
+ * <p>Operations stay linearizable as long as a majority is up, with a latency bounded by
+ * the fastest majority. A deletion is a write of an absent value. Compare-and-set and
+ * increments are refused.</p>
+ */
+class QuorumHandler implements KVStore.Iface {
+
+  private static final Logger logger = LoggerFactory.getLogger(QuorumHandler.class);
+
+  private static final ErrorResultMaker keyNotFound = new ErrorResultMaker(logger, DEBUG, kKeyNotFound, "%s: key not found");
+
+  private static final ErrorResultMaker paramIsNull = new ErrorResultMaker(logger, ERROR, kError, "%s cannot be null");
+
+  private static final ErrorResultMaker ttlUnsupported = new ErrorResultMaker(logger, ERROR, kError, "%s: TTL not supported by quorum replicas");
+
+  private static final ErrorResultMaker rmwUnsupported = new ErrorResultMaker(logger, ERROR, kError, "%s: read-modify-write not supported by quorum replicas");
+
+  private static final ErrorResultMaker noQuorum = new ErrorResultMaker(logger, ERROR, kError, "%s: no quorum, %s");
+
+  private static final Result success = new Result("", kSuccess, "");
+
+  @FunctionalInterface
+  private interface Call<R> {
+    R apply(KVStore.Iface replica) throws TException;
+  }
+
+  private final KVStoreHandler local;
+
+  private final List<InetSocketAddress> peers;
+
+  private final ConnectionPool pool;
+
+  private final int nodeId;
+
+  private final int majority;
+
+  private final ExecutorService fanOut = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, "quorum-fanout");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  /**
+   * @param peers the other replicas of the group
+   * @param nodeId unique in the group, breaks ties between writes of the same timestamp
+   */
+  QuorumHandler(KVStoreHandler local, List<InetSocketAddress> peers, ConnectionPool pool, int nodeId) {
+    this.local = local;
+    this.peers = peers;
+    this.pool = pool;
+    this.nodeId = nodeId;
+    majority = (peers.size() + 1) / 2 + 1;
+  }
+
+  /**
+   * Order tags by timestamp, then by node id
+   */
+  static int compareTags(TaggedValue a, TaggedValue b) {
+    int byTimestamp = Long.compare(a.timestamp, b.timestamp);
+    return byTimestamp != 0 ? byTimestamp : Integer.compare(a.nodeId, b.nodeId);
+  }
+
+  @Override
+  public Result kvset(String key, String value, long ttlMillis) throws TException {
+    if (key == null) { return paramIsNull.make("key"); }
+    if (value == null) { return paramIsNull.make("value"); }
+    if (ttlMillis != 0) { return ttlUnsupported.make("kvset"); }
+    try {
+      write(key, value);
+      return success;
+    } catch (TException e) {
+      return noQuorum.make("kvset", e.getMessage());
+    }
+  }
+
+  @Override
+  public Result kvget(String key) throws TException {
+    if (key == null) { return paramIsNull.make("key"); }
+    try {
+      TaggedValue latest = read(key);
+      return latest.isSetValue() ? new Result(latest.value, kSuccess, "") : keyNotFound.make("kvget");
+    } catch (TException e) {
+      return noQuorum.make("kvget", e.getMessage());
+    }
+  }
+
+  /**
+   * Deleting an absent key is a read and writes nothing
+   */
+  @Override
+  public Result kvdelete(String key) throws TException {
+    if (key == null) { return paramIsNull.make("key"); }
+    try {
+      if (!read(key).isSetValue()) { return keyNotFound.make("kvdelete"); }
+      write(key, null);
+      return success;
+    } catch (TException e) {
+      return noQuorum.make("kvdelete", e.getMessage());
+    }
+  }
+
+  /**
+   * Registers cannot implement an atomic read-modify-write, which needs consensus
+   */
+  @Override
+  public Result kvcas(String key, String expected, String value) throws TException {
+    return rmwUnsupported.make("kvcas");
+  }
+
+  @Override
+  public Result kvincr(String key, long delta) throws TException {
+    return rmwUnsupported.make("kvincr");
+  }
+
+  @Override
+  public List<Result> kvmultiget(List<String> keys) throws TException {
+    if (keys == null) { return Collections.singletonList(paramIsNull.make("keys")); }
+    List<Result> results = new ArrayList<>(keys.size());
+    for (String key : keys) { results.add(kvget(key)); }
+    return results;
+  }
+
+  @Override
+  public List<Result> kvmultiset(List<KeyValue> pairs) throws TException {
+    if (pairs == null) { return Collections.singletonList(paramIsNull.make("pairs")); }
+    List<Result> results = new ArrayList<>(pairs.size());
+    for (KeyValue pair : pairs) {
+      results.add(pair == null ? paramIsNull.make("key") : kvset(pair.key, pair.value, pair.ttlMillis));
+    }
+    return results;
+  }
+
+  @Override
+  public List<Result> kvmultidelete(List<String> keys) throws TException {
+    if (keys == null) { return Collections.singletonList(paramIsNull.make("keys")); }
+    List<Result> results = new ArrayList<>(keys.size());
+    for (String key : keys) { results.add(kvdelete(key)); }
+    return results;
+  }
+
+  /**
+   * Lists the local replica, which may miss or precede the latest writes it was not part
+   * of the majority of
+   */
+  @Override
+  public ScanPage kvscan(String startKey, String endKey, int limit, String cursor) throws TException {
+    return local.kvscan(startKey, endKey, limit, cursor);
+  }
+
+  @Override
+  public long kvreplicate(List<LogEntry> entries, boolean reset, boolean completesCopy) throws TException {
+    return local.kvreplicate(entries, reset, completesCopy);
+  }
+
+  @Override
+  public TaggedValue kvtagget(String key) throws TException {
+    return local.kvtagget(key);
+  }
+
+  @Override
+  public boolean kvtagset(String key, TaggedValue tagged) throws TException {
+    return local.kvtagset(key, tagged);
+  }
+
+  /**
+   * @return the value with the highest tag, stored on a majority
+   */
+  private TaggedValue read(String key) throws TException {
+    List<TaggedValue> answers = quorum(replica -> replica.kvtagget(key));
+    TaggedValue latest = answers.get(0);
+    boolean isUnanimous = true;
+    for (TaggedValue answer : answers) {
+      int order = compareTags(answer, latest);
+      if (order != 0) { isUnanimous = false; }
+      if (order > 0) { latest = answer; }
+    }
+    if (!isUnanimous) {
+      TaggedValue writeBack = latest;
+      quorum(replica -> replica.kvtagset(key, writeBack));
+    }
+    return latest;
+  }
+
+  /**
+   * @param value null for a deletion
+   */
+  private void write(String key, String value) throws TException {
+    long timestamp = 0;
+    for (TaggedValue answer : quorum(replica -> replica.kvtagget(key))) {
+      timestamp = Math.max(timestamp, answer.timestamp);
+    }
+    TaggedValue tagged = new TaggedValue().setTimestamp(timestamp + 1).setNodeId(nodeId);
+    if (value != null) { tagged.setValue(value); }
+    quorum(replica -> replica.kvtagset(key, tagged));
+  }
+
+  /**
+   * Send a call to every replica in parallel and wait for the first majority of answers
+   */
+  private <R> List<R> quorum(Call<R> call) throws TException {
+    CompletionService<R> answers = new ExecutorCompletionService<>(fanOut);
+    answers.submit(() -> call.apply(local));
+    for (InetSocketAddress peer : peers) {
+      answers.submit(() -> pool.call(peer, call::apply));
+    }
+
+    List<R> received = new ArrayList<>(majority);
+    int failures = 0;
+    TException lastFailure = null;
+    while (received.size() < majority) {
+      if (failures > peers.size() + 1 - majority) {
+        throw new TException(failures + " replicas failed, last: " + lastFailure.getMessage(), lastFailure);
+      }
+      try {
+        received.add(answers.take().get());
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        throw new TException("interrupted while waiting for a quorum");
+      } catch (ExecutionException e) {
+        failures++;
+        Throwable cause = e.getCause();
+        lastFailure = cause instanceof TException ? (TException) cause : new TException(cause);
+      }
+    }
+    return received;
+  }
+
+  /**
+   * Replicas grant no leases, since they apply writes coordinated elsewhere
+   */
+  @Override
+  public LeasedResult kvleaseget(String key, String holder) throws TException {
+    return new LeasedResult(kvget(key), 0);
+  }
+
+  @Override
+  public Invalidations kvinvalidations(String holder, long acked, int waitMillis) throws TException {
+    return local.kvinvalidations(holder, acked, waitMillis);
+  }
+
+  @Override
+  public ServerStats kvstats() throws TException {
+    return local.kvstats();
+  }
+}
@@ -0,0 +1,153 @@
+package dsf16;
+
+import kvclient.Connector;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The store of a primary: every mutation is applied to the local map and appended to the
+ * {@link Replicator} log in the same order, then waits for the backups as configured.
+ */
+class ReplicatedMap extends AbstractMap<String, String> implements ConcurrentMap<String, String>, Closeable {
+
+  private final Map<String, String> map;
+
+  /** keeps log order and map order identical */
+  private final ReentrantLock writing = new ReentrantLock();
+
+  private final Replicator replicator;
+
+  /**
+   * @param isSync whether mutations wait until the backups have applied them
+   */
+  ReplicatedMap(Map<String, String> map, List<InetSocketAddress> backups, Connector connector, boolean isSync) {
+    this.map = map;
+    replicator = new Replicator(writing, map, backups, connector, isSync);
+  }
+
+  @Override
+  public String get(Object key) {
+    return map.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return map.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return map.size();
+  }
+
+  @Override
+  public String put(String key, String value) {
+    long sequence;
+    String previous;
+    writing.lock();
+    try {
+      previous = map.put(key, value);
+      sequence = replicator.append(key, value);
+    } finally {
+      writing.unlock();
+    }
+    replicator.awaitReplicated(sequence);
+    return previous;
+  }
+
+  @Override
+  public String remove(Object key) {
+    long sequence;
+    String previous;
+    writing.lock();
+    try {
+      previous = map.remove(key);
+      if (previous == null) { return null; }
+      sequence = replicator.append((String) key, null);
+    } finally {
+      writing.unlock();
+    }
+    replicator.awaitReplicated(sequence);
+    return previous;
+  }
+
+  @Override
+  public String putIfAbsent(String key, String value) {
+    long sequence;
+    writing.lock();
+    try {
+      String previous = map.putIfAbsent(key, value);
+      if (previous != null) { return previous; }
+      sequence = replicator.append(key, value);
+    } finally {
+      writing.unlock();
+    }
+    replicator.awaitReplicated(sequence);
+    return null;
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    long sequence;
+    writing.lock();
+    try {
+      if (!map.remove(key, value)) { return false; }
+      sequence = replicator.append((String) key, null);
+    } finally {
+      writing.unlock();
+    }
+    replicator.awaitReplicated(sequence);
+    return true;
+  }
+
+  @Override
+  public boolean replace(String key, String oldValue, String newValue) {
+    long sequence;
+    writing.lock();
+    try {
+      if (!map.replace(key, oldValue, newValue)) { return false; }
+      sequence = replicator.append(key, newValue);
+    } finally {
+      writing.unlock();
+    }
+    replicator.awaitReplicated(sequence);
+    return true;
+  }
+
+  @Override
+  public String replace(String key, String value) {
+    long sequence;
+    String previous;
+    writing.lock();
+    try {
+      previous = map.replace(key, value);
+      if (previous == null) { return null; }
+      sequence = replicator.append(key, value);
+    } finally {
+      writing.unlock();
+    }
+    replicator.awaitReplicated(sequence);
+    return previous;
+  }
+
+  /**
+   * A read-only view of the local map
+   */
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    return Collections.unmodifiableMap(map).entrySet();
+  }
+
+  @Override
+  public void close() {
+    replicator.close();
+  }
+}
@@ -0,0 +1,314 @@
+package dsf16;
+
+import kvclient.Connector;
+import kvclient.PipelinedClient;
+import kvstore.LogEntry;
+import org.apache.thrift.TException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Streams a primary's write log to its backups. Every mutation gets the next sequence
+ * number and is queued to each backup, whose sender thread ships the queue in batches over a
+ * {@link PipelinedClient}, keeping several batches in flight.</p>
+ *
+ * <p>A backup that connects, or reconnects after a failure, first receives a copy of the
+ * store and then the log from the point the copy started. It joins the in-sync set once the
+ * copy is sent. With synchronous acknowledgement a mutation returns only after every in-sync
+ * backup has applied it. The copy is fuzzy, and mutations logged before the backup joined may
+ * have returned without waiting for it, so the backup is told to serve reads only with the
+ * batch that carries the last of those. A failed backup leaves the in-sync set until it has
+ * caught up again, so it never blocks the primary.</p>
+ */
+class Replicator implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(Replicator.class);
+
+  private static final int batchSize = 256;
+
+  /** batches in flight per backup */
+  private static final int window = 8;
+
+  private static final long retryMillis = 1000;
+
+  private class Backup implements Runnable {
+    final InetSocketAddress address;
+
+    final String name;
+
+    final BlockingQueue<LogEntry> queue = new LinkedBlockingQueue<>();
+
+    /** whether new entries are queued; guarded by writing */
+    boolean isAttached = false;
+
+    /** the last sequence number the copy covers */
+    volatile long copiedUpTo = 0;
+
+    /** guarded by acking */
+    boolean isInSync = false;
+
+    /** guarded by acking */
+    long acked = 0;
+
+    volatile Throwable failure;
+
+    /** whether the last attempt failed, so that a backup which is down is reported once */
+    boolean isFailing = false;
+
+    Backup(InetSocketAddress address) {
+      this.address = address;
+      name = address.getHostString() + ":" + address.getPort();
+    }
+
+    @Override
+    public void run() {
+      while (!closed) {
+        try {
+          stream();
+        } catch (TException | RuntimeException e) {
+          if (!closed && !isFailing) { logger.warn("Replication to {} failed: {}", name, e.getMessage()); }
+          isFailing = true;
+        }
+        detach(this);
+        try {
+          Thread.sleep(retryMillis);
+        } catch (InterruptedException ie) {
+          return;
+        }
+      }
+    }
+
+    private void stream() throws TException {
+      failure = null;
+      try (PipelinedClient client = new PipelinedClient(connector.open(address), connector.protocolFactory(), window)) {
+        attach(this);
+        copy(client);
+        long syncedAt = join(this);
+        isFailing = false;
+        logger.info("Copied the store to {}, streaming the log", name);
+
+        boolean isCopyComplete = syncedAt == copiedUpTo;
+        if (isCopyComplete) { send(client, new ArrayList<>(), false, false, true); }
+        List<LogEntry> batch = new ArrayList<>(batchSize);
+        while (!closed) {
+          checkFailure();
+          LogEntry entry = queue.poll(100, TimeUnit.MILLISECONDS);
+          if (entry == null) { continue; }
+          batch.add(entry);
+          queue.drainTo(batch, batchSize - 1);
+          boolean completesCopy = !isCopyComplete && batch.get(batch.size() - 1).sequence >= syncedAt;
+          send(client, batch, false, false, completesCopy);
+          isCopyComplete |= completesCopy;
+          batch = new ArrayList<>(batchSize);
+        }
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    private void copy(PipelinedClient client) throws TException {
+      List<LogEntry> batch = new ArrayList<>(batchSize);
+      boolean reset = true;
+      for (Map.Entry<String, String> pair : source.entrySet()) {
+        batch.add(new LogEntry().setSequence(0).setKey(pair.getKey()).setValue(pair.getValue()));
+        if (batch.size() == batchSize) {
+          checkFailure();
+          send(client, batch, reset, false, false);
+          batch = new ArrayList<>(batchSize);
+          reset = false;
+        }
+      }
+      send(client, batch, reset, true, false);
+    }
+
+    /**
+     * @param endsCopy whether the batch is the last of the copy
+     * @param completesCopy whether the backup may serve reads once the batch is applied
+     */
+    private void send(PipelinedClient client, List<LogEntry> batch, boolean reset, boolean endsCopy,
+                      boolean completesCopy) {
+      client.kvreplicate(batch, reset, completesCopy).whenComplete((applied, e) -> {
+        if (e != null) {
+          failure = e;
+        } else {
+          acknowledge(this, applied, endsCopy);
+        }
+      });
+    }
+
+    private void checkFailure() throws TException {
+      if (failure != null) { throw new TException(failure.getMessage(), failure); }
+    }
+  }
+
+  /** makes applying a mutation and queueing its log entry atomic; held by the callers of append */
+  private final ReentrantLock writing;
+
+  private final ReentrantLock acking = new ReentrantLock();
+
+  private final Condition ackedChanged = acking.newCondition();
+
+  private final Map<String, String> source;
+
+  private final Connector connector;
+
+  private final boolean isSync;
+
+  private final List<Backup> backups = new ArrayList<>();
+
+  private final List<Thread> senders = new ArrayList<>();
+
+  /** guarded by writing */
+  private long sequence = 0;
+
+  private volatile boolean closed = false;
+
+  /**
+   * @param writing the lock callers hold while applying a mutation and appending it
+   * @param source the store copied to a backup when it connects
+   * @param isSync whether mutations wait for the in-sync backups
+   */
+  Replicator(ReentrantLock writing, Map<String, String> source, List<InetSocketAddress> addresses,
+             Connector connector, boolean isSync) {
+    this.writing = writing;
+    this.source = source;
+    this.connector = connector;
+    this.isSync = isSync;
+    for (InetSocketAddress address : addresses) {
+      Backup backup = new Backup(address);
+      backups.add(backup);
+      Thread sender = new Thread(backup, "replication-" + backup.name);
+      sender.setDaemon(true);
+      senders.add(sender);
+    }
+    senders.forEach(Thread::start);
+  }
+
+  /**
+   * Log a mutation already applied to the store; the caller must hold the writing lock
+   *
+   * @param value null for a deletion
+   * @return the sequence number to wait for
+   */
+  long append(String key, String value) {
+    LogEntry entry = new LogEntry().setSequence(++sequence).setKey(key);
+    if (value != null) { entry.setValue(value); }
+    for (Backup backup : backups) {
+      if (backup.isAttached) { backup.queue.add(entry); }
+    }
+    return sequence;
+  }
+
+  /**
+   * In sync mode, wait until every in-sync backup has applied the given sequence number
+   */
+  void awaitReplicated(long sequence) {
+    if (!isSync) { return; }
+    acking.lock();
+    try {
+      while (!closed && isBehind(sequence)) {
+        ackedChanged.awaitUninterruptibly();
+      }
+    } finally {
+      acking.unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    senders.forEach(Thread::interrupt);
+    acking.lock();
+    try {
+      ackedChanged.signalAll();
+    } finally {
+      acking.unlock();
+    }
+  }
+
+  private boolean isBehind(long sequence) {
+    for (Backup backup : backups) {
+      if (backup.isInSync && backup.acked < sequence) { return true; }
+    }
+    return false;
+  }
+
+  /**
+   * Queue the log for a backup from now on, then copy the store to it
+   */
+  private void attach(Backup backup) {
+    writing.lock();
+    try {
+      backup.queue.clear();
+      backup.isAttached = true;
+      backup.copiedUpTo = sequence;
+    } finally {
+      writing.unlock();
+    }
+  }
+
+  /**
+   * Add a backup whose copy is sent to the in-sync set, so that mutations wait for it from
+   * now on
+   *
+   * @return the last sequence number a mutation returning without the backup may have had
+   */
+  private long join(Backup backup) {
+    acking.lock();
+    try {
+      backup.isInSync = true;
+    } finally {
+      acking.unlock();
+    }
+    // a mutation checked the in-sync set after it was logged, under the same lock
+    writing.lock();
+    try {
+      return sequence;
+    } finally {
+      writing.unlock();
+    }
+  }
+
+  private void detach(Backup backup) {
+    writing.lock();
+    try {
+      backup.isAttached = false;
+      backup.queue.clear();
+    } finally {
+      writing.unlock();
+    }
+    acking.lock();
+    try {
+      backup.isInSync = false;
+      backup.acked = 0;
+      ackedChanged.signalAll();
+    } finally {
+      acking.unlock();
+    }
+  }
+
+  private void acknowledge(Backup backup, long applied, boolean endsCopy) {
+    acking.lock();
+    try {
+      backup.acked = Math.max(backup.acked, applied);
+      if (endsCopy) {
+        // the copy reflects every mutation logged before it started
+        backup.acked = Math.max(backup.acked, backup.copiedUpTo);
+      }
+      ackedChanged.signalAll();
+    } finally {
+      acking.unlock();
+    }
+  }
+}
@@ -0,0 +1,236 @@
+package dsf16;
+
+import kvclient.ScanPages;
+import kvstore.Invalidations;
+import kvstore.KVStore;
+import kvstore.KeyValue;
+import kvstore.LeasedResult;
+import kvstore.LogEntry;
+import kvstore.Result;
+import kvstore.ScanPage;
+import kvstore.ServerStats;
+import kvstore.TaggedValue;
+import org.apache.thrift.TException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * <p>Serves requests shared-nothing: the key space is hash-partitioned into shards, and each
+ * shard owns a plain map that only its single worker thread ever touches. Connection threads
+ * hand every request to the worker of the shard owning the key and wait for its result. Batch
+ * requests are split per shard and run on the shards in parallel.</p>
+ *
+ * <p>Requests of a shard run one at a time in arrival order. In buggy mode the delayed writes
+ * are queued on the owning shard too.</p>
+ */
+class ShardedHandler implements KVStore.Iface {
+
+  @FunctionalInterface
+  private interface Batch<T> {
+    List<Result> apply(KVStoreHandler handler, List<T> items) throws TException;
+  }
+
+  private static class Shard {
+    final ScheduledExecutorService worker;
+    final KVStoreHandler handler;
+
+    Shard(int id, Map<String, String> map, boolean isBuggy, AccessLog accessLog) {
+      worker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "shard-" + id);
+        thread.setDaemon(true);
+        return thread;
+      });
+      handler = new KVStoreHandler(map, isBuggy, accessLog, worker);
+    }
+
+    <R> Future<R> submit(Callable<R> call) {
+      return worker.submit(call);
+    }
+  }
+
+  private final Shard[] shards;
+
+  /**
+   * @param maps creates the map of each shard, which needs no synchronization
+   */
+  ShardedHandler(int shardCount, Supplier<Map<String, String>> maps, boolean isBuggy, AccessLog accessLog) {
+    shards = new Shard[shardCount];
+    for (int i = 0; i < shardCount; i++) {
+      shards[i] = new Shard(i, maps.get(), isBuggy, accessLog);
+    }
+  }
+
+  @Override
+  public Result kvset(String key, String value, long ttlMillis) throws TException {
+    Shard shard = shardFor(key);
+    return await(shard.submit(() -> shard.handler.kvset(key, value, ttlMillis)));
+  }
+
+  @Override
+  public Result kvget(String key) throws TException {
+    Shard shard = shardFor(key);
+    return await(shard.submit(() -> shard.handler.kvget(key)));
+  }
+
+  @Override
+  public Result kvdelete(String key) throws TException {
+    Shard shard = shardFor(key);
+    return await(shard.submit(() -> shard.handler.kvdelete(key)));
+  }
+
+  @Override
+  public Result kvcas(String key, String expected, String value) throws TException {
+    Shard shard = shardFor(key);
+    return await(shard.submit(() -> shard.handler.kvcas(key, expected, value)));
+  }
+
+  @Override
+  public Result kvincr(String key, long delta) throws TException {
+    Shard shard = shardFor(key);
+    return await(shard.submit(() -> shard.handler.kvincr(key, delta)));
+  }
+
+  @Override
+  public List<Result> kvmultiget(List<String> keys) throws TException {
+    if (keys == null) { return shards[0].handler.kvmultiget(null); }
+    return scatter(keys, key -> key, KVStoreHandler::kvmultiget);
+  }
+
+  @Override
+  public List<Result> kvmultiset(List<KeyValue> pairs) throws TException {
+    if (pairs == null) { return shards[0].handler.kvmultiset(null); }
+    return scatter(pairs, pair -> pair == null ? null : pair.key, KVStoreHandler::kvmultiset);
+  }
+
+  @Override
+  public List<Result> kvmultidelete(List<String> keys) throws TException {
+    if (keys == null) { return shards[0].handler.kvmultidelete(null); }
+    return scatter(keys, key -> key, KVStoreHandler::kvmultidelete);
+  }
+
+  /**
+   * Every shard scans the range in parallel, then the pages are merged
+   */
+  @Override
+  public ScanPage kvscan(String startKey, String endKey, int limit, String cursor) throws TException {
+    List<Future<ScanPage>> futures = new ArrayList<>(shards.length);
+    for (Shard shard : shards) {
+      futures.add(shard.submit(() -> shard.handler.kvscan(startKey, endKey, limit, cursor)));
+    }
+    List<ScanPage> pages = new ArrayList<>(shards.length);
+    for (Future<ScanPage> future : futures) { pages.add(await(future)); }
+    return ScanPages.merge(pages, Math.min(limit, KVStoreHandler.maxScanLimit));
+  }
+
+  @Override
+  public long kvreplicate(List<LogEntry> entries, boolean reset, boolean completesCopy) throws TException {
+    return shards[0].handler.kvreplicate(entries, reset, completesCopy);
+  }
+
+  @Override
+  public TaggedValue kvtagget(String key) throws TException {
+    Shard shard = shardFor(key);
+    return await(shard.submit(() -> shard.handler.kvtagget(key)));
+  }
+
+  @Override
+  public boolean kvtagset(String key, TaggedValue tagged) throws TException {
+    Shard shard = shardFor(key);
+    return await(shard.submit(() -> shard.handler.kvtagset(key, tagged)));
+  }
+
+  @Override
+  public LeasedResult kvleaseget(String key, String holder) throws TException {
+    Shard shard = shardFor(key);
+    return await(shard.submit(() -> shard.handler.kvleaseget(key, holder)));
+  }
+
+  /**
+   * Shards grant no leases
+   */
+  @Override
+  public Invalidations kvinvalidations(String holder, long acked, int waitMillis) throws TException {
+    return shards[0].handler.kvinvalidations(holder, acked, waitMillis);
+  }
+
+  /**
+   * Shards keep no statistics: the server measures requests in the {@link InstrumentedHandler}
+   * wrapping this one, before they are split per shard
+   */
+  @Override
+  public ServerStats kvstats() throws TException {
+    return shards[0].handler.kvstats();
+  }
+
+  /**
+   * Run a batch as one sub-batch per shard, then put the results back in request order
+   */
+  private <T> List<Result> scatter(List<T> items, Function<T, String> keyOf, Batch<T> batch) throws TException {
+    List<List<T>> parts = new ArrayList<>(shards.length);
+    List<List<Integer>> positions = new ArrayList<>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      parts.add(new ArrayList<>());
+      positions.add(new ArrayList<>());
+    }
+    for (int i = 0; i < items.size(); i++) {
+      int shard = shardIndex(keyOf.apply(items.get(i)));
+      parts.get(shard).add(items.get(i));
+      positions.get(shard).add(i);
+    }
+
+    List<Future<List<Result>>> futures = new ArrayList<>(shards.length);
+    for (int i = 0; i < shards.length; i++) {
+      Shard shard = shards[i];
+      List<T> part = parts.get(i);
+      futures.add(part.isEmpty() ? null : shard.submit(() -> batch.apply(shard.handler, part)));
+    }
+
+    Result[] results = new Result[items.size()];
+    for (int i = 0; i < shards.length; i++) {
+      if (futures.get(i) == null) { continue; }
+      List<Result> partResults = await(futures.get(i));
+      List<Integer> partPositions = positions.get(i);
+      for (int j = 0; j < partResults.size(); j++) {
+        results[partPositions.get(j)] = partResults.get(j);
+      }
+    }
+    return Arrays.asList(results);
+  }
+
+  private Shard shardFor(String key) {
+    return shards[shardIndex(key)];
+  }
+
+  /**
+   * A null key goes to the first shard, whose handler rejects it
+   */
+  private int shardIndex(String key) {
+    if (key == null) { return 0; }
+    int h = key.hashCode() * 0x9e3779b9;
+    return ((h ^ (h >>> 16)) & 0x7fffffff) % shards.length;
+  }
+
+  private static <R> R await(Future<R> future) throws TException {
+    try {
+      return future.get();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new TException("interrupted while waiting for the shard");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof TException) { throw (TException) cause; }
+      if (cause instanceof RuntimeException) { throw (RuntimeException) cause; }
+      throw new TException(cause);
+    }
+  }
+}
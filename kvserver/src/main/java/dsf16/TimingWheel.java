@@ -0,0 +1,182 @@
+package dsf16;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * <p>A hashed hierarchical timing wheel, keeping millions of key expiry timers at a constant
+ * cost each. Time advances in ticks. Level 0 has a slot per tick for the next 64 ticks, and
+ * every level above has 64 slots each spanning a full turn of the level below. Scheduling
+ * and cancelling a timer link it into or out of a slot list in O(1). Advancing a tick
+ * expires one slot of level 0, and at the end of every turn moves the next slot of the
+ * level above down, so each timer is moved at most once per level.</p>
+ *
+ * <p>Five levels cover 2^30 ticks; farther timers wait in the top level until they are in
+ * range. The wheel holds no thread: its owner calls {@link #advance} periodically.
+ * Thread-safe.</p>
+ */
+class TimingWheel {
+
+  private static final int slotBits = 6;
+
+  private static final int slotsPerLevel = 1 << slotBits;
+
+  private static final int slotMask = slotsPerLevel - 1;
+
+  private static final int levels = 5;
+
+  private static final long maxDelta = (1L << (slotBits * levels)) - 1;
+
+  static final class Timer {
+    final String key;
+    final long deadlineMillis;
+    private final long deadlineTick;
+    private Timer previous;
+    private Timer next;
+
+    private Timer(String key, long deadlineMillis, long deadlineTick) {
+      this.key = key;
+      this.deadlineMillis = deadlineMillis;
+      this.deadlineTick = deadlineTick;
+    }
+
+    private boolean isLinked() {
+      return previous != null;
+    }
+  }
+
+  private final long tickMillis;
+
+  private final long startMillis;
+
+  /** sentinel heads of the circular slot lists, by level then slot */
+  private final Timer[][] slots = new Timer[levels][slotsPerLevel];
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  /** the next tick to expire */
+  private long currentTick = 0;
+
+  private int size = 0;
+
+  TimingWheel(long tickMillis, long startMillis) {
+    this.tickMillis = tickMillis;
+    this.startMillis = startMillis;
+    for (Timer[] level : slots) {
+      for (int s = 0; s < slotsPerLevel; s++) {
+        Timer head = new Timer(null, 0, 0);
+        head.previous = head;
+        head.next = head;
+        level[s] = head;
+      }
+    }
+  }
+
+  /**
+   * @return a timer expiring at the first tick starting at or after the deadline
+   */
+  Timer schedule(String key, long deadlineMillis) {
+    long deadlineTick = Math.max(0, (deadlineMillis - startMillis + tickMillis - 1) / tickMillis);
+    Timer timer = new Timer(key, deadlineMillis, deadlineTick);
+    lock.lock();
+    try {
+      link(timer);
+      size++;
+    } finally {
+      lock.unlock();
+    }
+    return timer;
+  }
+
+  /**
+   * Does nothing if the timer has expired or was cancelled already
+   */
+  void cancel(Timer timer) {
+    lock.lock();
+    try {
+      if (timer.isLinked()) {
+        unlink(timer);
+        size--;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Advance the wheel up to the given time, then hand the expired timers to the consumer,
+   * out of the lock
+   */
+  void advance(long nowMillis, Consumer<Timer> expired) {
+    long targetTick = (nowMillis - startMillis) / tickMillis;
+    List<Timer> due = new ArrayList<>();
+    lock.lock();
+    try {
+      while (currentTick <= targetTick) {
+        cascade();
+        Timer head = slots[0][(int) (currentTick & slotMask)];
+        while (head.next != head) {
+          Timer timer = head.next;
+          unlink(timer);
+          if (timer.deadlineTick > currentTick) {
+            link(timer);
+          } else {
+            size--;
+            due.add(timer);
+          }
+        }
+        currentTick++;
+      }
+    } finally {
+      lock.unlock();
+    }
+    due.forEach(expired);
+  }
+
+  int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * At the start of a turn of level 0, bring down the timers of the slots starting now on
+   * every level whose own turn completes
+   */
+  private void cascade() {
+    for (int level = 1; level < levels; level++) {
+      if (((currentTick >>> (slotBits * (level - 1))) & slotMask) != 0) { return; }
+      Timer head = slots[level][(int) ((currentTick >>> (slotBits * level)) & slotMask)];
+      while (head.next != head) {
+        Timer timer = head.next;
+        unlink(timer);
+        link(timer);
+      }
+    }
+  }
+
+  private void link(Timer timer) {
+    long delta = timer.deadlineTick - currentTick;
+    long tick = delta < 0 ? currentTick : delta > maxDelta ? currentTick + maxDelta : timer.deadlineTick;
+    delta = tick - currentTick;
+    int level = 0;
+    while (level < levels - 1 && delta >= 1L << (slotBits * (level + 1))) { level++; }
+    Timer head = slots[level][(int) ((tick >>> (slotBits * level)) & slotMask)];
+    timer.previous = head.previous;
+    timer.next = head;
+    head.previous.next = timer;
+    head.previous = timer;
+  }
+
+  private static void unlink(Timer timer) {
+    timer.previous.next = timer.next;
+    timer.next.previous = timer.previous;
+    timer.previous = null;
+    timer.next = null;
+  }
+}
@@ -0,0 +1,246 @@
+package storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A durable string map in the Bitcask style: every mutation is appended to a
+ * {@link SegmentLog} and the whole key space is kept in an in-memory hash index, so reads
+ * never touch the disk. The index is rebuilt by replaying the segments when opened. It is
+ * a {@link ConcurrentHashMap} unless another map is given.</p>
+ *
+ * <p>Mutations are applied to the index in log order, then the caller waits for the group
+ * commit covering its record before returning. I/O failures are rethrown as
+ * {@link UncheckedIOException}.</p>
+ *
+ * <p>{@link #checkpoint()} bounds the replay work on restart: it writes the index to a
+ * {@link Snapshot} and drops the segments the snapshot covers.</p>
+ */
+public class LogStructuredMap extends AbstractMap<String, String> implements ConcurrentMap<String, String>, Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(LogStructuredMap.class);
+
+  public static final int defaultSegmentBytes = 64 * 1024 * 1024;
+
+  private final ConcurrentMap<String, String> index;
+
+  /** keeps log order and index order identical */
+  private final ReentrantLock writing = new ReentrantLock();
+
+  private final ReentrantLock checkpointing = new ReentrantLock();
+
+  private final Path snapshotFile;
+
+  private final SegmentLog log;
+
+  public LogStructuredMap(Path directory) throws IOException {
+    this(directory, defaultSegmentBytes);
+  }
+
+  public LogStructuredMap(Path directory, int segmentBytes) throws IOException {
+    this(directory, segmentBytes, new ConcurrentHashMap<>());
+  }
+
+  /**
+   * @param index an empty map to hold the key space, e.g. an {@link OffHeapMap}
+   */
+  public LogStructuredMap(Path directory, int segmentBytes, ConcurrentMap<String, String> index) throws IOException {
+    this.index = index;
+    snapshotFile = directory.resolve("snapshot.bin");
+    long fromSegment = 0;
+    if (Files.exists(snapshotFile)) {
+      fromSegment = Snapshot.read(snapshotFile, index::put);
+      logger.info("Loaded {} keys from snapshot", index.size());
+    }
+    log = new SegmentLog(directory, segmentBytes, fromSegment, (key, value) -> {
+      if (value == null) {
+        index.remove(key);
+      } else {
+        index.put(key, value);
+      }
+    });
+  }
+
+  @Override
+  public String get(Object key) {
+    return index.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return index.containsKey(key);
+  }
+
+  @Override
+  public int size() {
+    return index.size();
+  }
+
+  @Override
+  public String put(String key, String value) {
+    if (value == null) { throw new NullPointerException(); }
+    long position;
+    String previous;
+    writing.lock();
+    try {
+      position = append(key, value);
+      previous = index.put(key, value);
+    } finally {
+      writing.unlock();
+    }
+    awaitDurable(position);
+    return previous;
+  }
+
+  @Override
+  public String remove(Object key) {
+    long position;
+    String previous;
+    writing.lock();
+    try {
+      if (!index.containsKey(key)) { return null; }
+      position = append((String) key, null);
+      previous = index.remove(key);
+    } finally {
+      writing.unlock();
+    }
+    awaitDurable(position);
+    return previous;
+  }
+
+  @Override
+  public String putIfAbsent(String key, String value) {
+    if (value == null) { throw new NullPointerException(); }
+    long position;
+    writing.lock();
+    try {
+      String previous = index.get(key);
+      if (previous != null) { return previous; }
+      position = append(key, value);
+      index.put(key, value);
+    } finally {
+      writing.unlock();
+    }
+    awaitDurable(position);
+    return null;
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    long position;
+    writing.lock();
+    try {
+      if (value == null || !value.equals(index.get(key))) { return false; }
+      position = append((String) key, null);
+      index.remove(key);
+    } finally {
+      writing.unlock();
+    }
+    awaitDurable(position);
+    return true;
+  }
+
+  @Override
+  public boolean replace(String key, String oldValue, String newValue) {
+    if (newValue == null) { throw new NullPointerException(); }
+    long position;
+    writing.lock();
+    try {
+      if (oldValue == null || !oldValue.equals(index.get(key))) { return false; }
+      position = append(key, newValue);
+      index.put(key, newValue);
+    } finally {
+      writing.unlock();
+    }
+    awaitDurable(position);
+    return true;
+  }
+
+  @Override
+  public String replace(String key, String value) {
+    if (value == null) { throw new NullPointerException(); }
+    long position;
+    String previous;
+    writing.lock();
+    try {
+      previous = index.get(key);
+      if (previous == null) { return null; }
+      position = append(key, value);
+      index.put(key, value);
+    } finally {
+      writing.unlock();
+    }
+    awaitDurable(position);
+    return previous;
+  }
+
+  /**
+   * A read-only view of the index
+   */
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    return Collections.unmodifiableMap(index).entrySet();
+  }
+
+  /**
+   * <p>Write a snapshot of the key space and delete the log segments it covers. Writers
+   * are only held up while the log rolls to a new segment.</p>
+   *
+   * <p>The index is iterated while writers go on, so the image is fuzzy. Every mutation
+   * it may have missed or caught halfway lives in a segment from the roll on, and
+   * replaying those over the image on startup restores a consistent state.</p>
+   *
+   * @return the number of keys written
+   */
+  public long checkpoint() throws IOException {
+    checkpointing.lock();
+    try {
+      long segmentId;
+      writing.lock();
+      try {
+        // every record in the older segments has reached the index by now
+        segmentId = log.roll();
+      } finally {
+        writing.unlock();
+      }
+      long count = Snapshot.write(snapshotFile, segmentId, index.entrySet());
+      log.deleteSegmentsBefore(segmentId);
+      return count;
+    } finally {
+      checkpointing.unlock();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    log.close();
+  }
+
+  private long append(String key, String value) {
+    try {
+      return log.append(key, value);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void awaitDurable(long position) {
+    try {
+      log.awaitDurable(position);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
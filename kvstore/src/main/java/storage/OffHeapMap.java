@@ -0,0 +1,481 @@
+package storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>A string map keeping its entries outside the Java heap, so that heap usage and GC
+ * pauses do not grow with the number of keys. Keys and values are stored as UTF-8 records
+ * {@code [keyLength:int][valueLength:int][key][value]} in chunks handed out by a
+ * {@link SlabAllocator}, and located through an open-addressing table with linear probing,
+ * itself a direct buffer of {@code [hash:int][address:long]} slots.</p>
+ *
+ * <p>The map is split into independently locked segments by key hash. Readers of a segment
+ * share its lock, writers hold it exclusively. Only the strings returned to the caller are
+ * allocated on the heap. Iteration is weakly consistent: each segment is copied under its
+ * lock when the iterator reaches it.</p>
+ */
+public class OffHeapMap extends AbstractMap<String, String> implements ConcurrentMap<String, String> {
+
+  public static final int defaultSlabBytes = 1024 * 1024;
+
+  private static final int slotBytes = 12;
+
+  private static final int headerBytes = 8;
+
+  private static final int initialSlots = 64;
+
+  /** a table holds at most 2^31 bytes */
+  private static final int maxSlots = 1 << 27;
+
+  private final Segment[] segments;
+
+  private final int segmentMask;
+
+  public OffHeapMap() {
+    this(16, defaultSlabBytes);
+  }
+
+  /**
+   * @param concurrency the number of segments, rounded up to a power of two, at most 256
+   * @param slabBytes the size of the slabs values are carved from
+   */
+  public OffHeapMap(int concurrency, int slabBytes) {
+    int count = Integer.highestOneBit(Math.max(Math.min(concurrency, 256) - 1, 1)) << 1;
+    segments = new Segment[count];
+    for (int i = 0; i < count; i++) { segments[i] = new Segment(slabBytes); }
+    segmentMask = count - 1;
+  }
+
+  @Override
+  public String get(Object key) {
+    if (!(key instanceof String)) { return null; }
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    Lock lock = segment.lock.readLock();
+    lock.lock();
+    try {
+      int slot = segment.find(hash, encode((String) key));
+      return slot < 0 ? null : segment.value(segment.address(slot));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    if (!(key instanceof String)) { return false; }
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    Lock lock = segment.lock.readLock();
+    lock.lock();
+    try {
+      return segment.find(hash, encode((String) key)) >= 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String put(String key, String value) {
+    if (value == null) { throw new NullPointerException(); }
+    int hash = hash(key);
+    byte[] keyBytes = encode(key);
+    Segment segment = segmentFor(hash);
+    Lock lock = segment.lock.writeLock();
+    lock.lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      if (slot < 0) {
+        segment.insert(hash, segment.write(keyBytes, encode(value)));
+        return null;
+      }
+      return segment.update(slot, segment.write(keyBytes, encode(value)));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String remove(Object key) {
+    if (!(key instanceof String)) { return null; }
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    Lock lock = segment.lock.writeLock();
+    lock.lock();
+    try {
+      int slot = segment.find(hash, encode((String) key));
+      return slot < 0 ? null : segment.delete(slot);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String putIfAbsent(String key, String value) {
+    if (value == null) { throw new NullPointerException(); }
+    int hash = hash(key);
+    byte[] keyBytes = encode(key);
+    Segment segment = segmentFor(hash);
+    Lock lock = segment.lock.writeLock();
+    lock.lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      if (slot >= 0) { return segment.value(segment.address(slot)); }
+      segment.insert(hash, segment.write(keyBytes, encode(value)));
+      return null;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean remove(Object key, Object value) {
+    if (!(key instanceof String) || !(value instanceof String)) { return false; }
+    int hash = hash(key);
+    Segment segment = segmentFor(hash);
+    Lock lock = segment.lock.writeLock();
+    lock.lock();
+    try {
+      int slot = segment.find(hash, encode((String) key));
+      if (slot < 0 || !segment.valueEquals(segment.address(slot), encode((String) value))) { return false; }
+      segment.delete(slot);
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public boolean replace(String key, String oldValue, String newValue) {
+    if (newValue == null) { throw new NullPointerException(); }
+    if (oldValue == null) { return false; }
+    int hash = hash(key);
+    byte[] keyBytes = encode(key);
+    Segment segment = segmentFor(hash);
+    Lock lock = segment.lock.writeLock();
+    lock.lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      if (slot < 0 || !segment.valueEquals(segment.address(slot), encode(oldValue))) { return false; }
+      segment.update(slot, segment.write(keyBytes, encode(newValue)));
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public String replace(String key, String value) {
+    if (value == null) { throw new NullPointerException(); }
+    int hash = hash(key);
+    byte[] keyBytes = encode(key);
+    Segment segment = segmentFor(hash);
+    Lock lock = segment.lock.writeLock();
+    lock.lock();
+    try {
+      int slot = segment.find(hash, keyBytes);
+      return slot < 0 ? null : segment.update(slot, segment.write(keyBytes, encode(value)));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public int size() {
+    long size = 0;
+    for (Segment segment : segments) {
+      Lock lock = segment.lock.readLock();
+      lock.lock();
+      try {
+        size += segment.size;
+      } finally {
+        lock.unlock();
+      }
+    }
+    return (int) Math.min(size, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public void clear() {
+    for (Segment segment : segments) {
+      Lock lock = segment.lock.writeLock();
+      lock.lock();
+      try {
+        segment.clear();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * A read-only, weakly consistent view
+   */
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    return new AbstractSet<Entry<String, String>>() {
+      @Override
+      public Iterator<Entry<String, String>> iterator() {
+        return new EntryIterator();
+      }
+
+      @Override
+      public int size() {
+        return OffHeapMap.this.size();
+      }
+    };
+  }
+
+  /**
+   * @return the direct memory held by slabs and tables
+   */
+  public long offHeapBytes() {
+    long bytes = 0;
+    for (Segment segment : segments) {
+      Lock lock = segment.lock.readLock();
+      lock.lock();
+      try {
+        bytes += segment.allocator.reservedBytes() + segment.table.capacity();
+      } finally {
+        lock.unlock();
+      }
+    }
+    return bytes;
+  }
+
+  private Segment segmentFor(int hash) {
+    return segments[(hash >>> 24) & segmentMask];
+  }
+
+  /**
+   * Never 0, which marks an empty slot
+   */
+  private static int hash(Object key) {
+    int h = key.hashCode() * 0x9e3779b9;
+    h ^= h >>> 16;
+    return h == 0 ? 1 : h;
+  }
+
+  private static byte[] encode(String s) {
+    return s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static final class Segment {
+
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    final SlabAllocator allocator;
+
+    ByteBuffer table;
+
+    int mask;
+
+    int size = 0;
+
+    Segment(int slabBytes) {
+      allocator = new SlabAllocator(slabBytes);
+      table = ByteBuffer.allocateDirect(initialSlots * slotBytes);
+      mask = initialSlots - 1;
+    }
+
+    int hashAt(int slot) {
+      return table.getInt(slot * slotBytes);
+    }
+
+    long address(int slot) {
+      return table.getLong(slot * slotBytes + 4);
+    }
+
+    void setSlot(int slot, int hash, long address) {
+      table.putInt(slot * slotBytes, hash);
+      table.putLong(slot * slotBytes + 4, address);
+    }
+
+    /**
+     * @return the slot holding the key, or -1
+     */
+    int find(int hash, byte[] key) {
+      for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+        int stored = hashAt(slot);
+        if (stored == 0) { return -1; }
+        if (stored == hash && keyEquals(address(slot), key)) { return slot; }
+      }
+    }
+
+    void insert(int hash, long address) {
+      if ((size + 1) * 4L > (mask + 1) * 3L) { grow(); }
+      int slot = hash & mask;
+      while (hashAt(slot) != 0) { slot = (slot + 1) & mask; }
+      setSlot(slot, hash, address);
+      size++;
+    }
+
+    /**
+     * Point a slot to a new record
+     *
+     * @return the value replaced
+     */
+    String update(int slot, long address) {
+      long previous = address(slot);
+      String value = value(previous);
+      table.putLong(slot * slotBytes + 4, address);
+      free(previous);
+      return value;
+    }
+
+    /**
+     * Free a slot and shift the following entries of its probe run back, so lookups never
+     * need tombstones
+     *
+     * @return the value removed
+     */
+    String delete(int slot) {
+      long removed = address(slot);
+      String value = value(removed);
+      free(removed);
+
+      int hole = slot;
+      for (int next = (hole + 1) & mask; hashAt(next) != 0; next = (next + 1) & mask) {
+        int home = hashAt(next) & mask;
+        if (((next - home) & mask) >= ((next - hole) & mask)) {
+          setSlot(hole, hashAt(next), address(next));
+          hole = next;
+        }
+      }
+      setSlot(hole, 0, 0);
+      size--;
+      return value;
+    }
+
+    void clear() {
+      for (int slot = 0; slot <= mask; slot++) {
+        if (hashAt(slot) != 0) {
+          free(address(slot));
+          setSlot(slot, 0, 0);
+        }
+      }
+      size = 0;
+    }
+
+    List<Entry<String, String>> entries() {
+      List<Entry<String, String>> entries = new ArrayList<>(size);
+      for (int slot = 0; slot <= mask; slot++) {
+        if (hashAt(slot) != 0) {
+          long address = address(slot);
+          entries.add(new SimpleImmutableEntry<>(key(address), value(address)));
+        }
+      }
+      return entries;
+    }
+
+    private void grow() {
+      int slots = (mask + 1) * 2;
+      if (slots > maxSlots) { throw new IllegalStateException("segment is full"); }
+      ByteBuffer old = table;
+      int oldSlots = mask + 1;
+      table = ByteBuffer.allocateDirect(slots * slotBytes);
+      mask = slots - 1;
+      for (int i = 0; i < oldSlots; i++) {
+        int hash = old.getInt(i * slotBytes);
+        if (hash == 0) { continue; }
+        int slot = hash & mask;
+        while (hashAt(slot) != 0) { slot = (slot + 1) & mask; }
+        setSlot(slot, hash, old.getLong(i * slotBytes + 4));
+      }
+    }
+
+    long write(byte[] key, byte[] value) {
+      long address = allocator.allocate(headerBytes + key.length + value.length);
+      ByteBuffer slab = allocator.slab(address).duplicate();
+      slab.position(SlabAllocator.offset(address));
+      slab.putInt(key.length).putInt(value.length).put(key).put(value);
+      return address;
+    }
+
+    void free(long address) {
+      ByteBuffer slab = allocator.slab(address);
+      int offset = SlabAllocator.offset(address);
+      allocator.free(address, headerBytes + slab.getInt(offset) + slab.getInt(offset + 4));
+    }
+
+    String key(long address) {
+      ByteBuffer slab = allocator.slab(address);
+      int offset = SlabAllocator.offset(address);
+      return decode(slab, offset + headerBytes, slab.getInt(offset));
+    }
+
+    String value(long address) {
+      ByteBuffer slab = allocator.slab(address);
+      int offset = SlabAllocator.offset(address);
+      return decode(slab, offset + headerBytes + slab.getInt(offset), slab.getInt(offset + 4));
+    }
+
+    boolean keyEquals(long address, byte[] key) {
+      ByteBuffer slab = allocator.slab(address);
+      int offset = SlabAllocator.offset(address);
+      return slab.getInt(offset) == key.length && bytesEqual(slab, offset + headerBytes, key);
+    }
+
+    boolean valueEquals(long address, byte[] value) {
+      ByteBuffer slab = allocator.slab(address);
+      int offset = SlabAllocator.offset(address);
+      return slab.getInt(offset + 4) == value.length
+        && bytesEqual(slab, offset + headerBytes + slab.getInt(offset), value);
+    }
+
+    private static boolean bytesEqual(ByteBuffer slab, int offset, byte[] bytes) {
+      for (int i = 0; i < bytes.length; i++) {
+        if (slab.get(offset + i) != bytes[i]) { return false; }
+      }
+      return true;
+    }
+
+    private static String decode(ByteBuffer slab, int offset, int length) {
+      byte[] bytes = new byte[length];
+      ByteBuffer view = slab.duplicate();
+      view.position(offset);
+      view.get(bytes);
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+
+  private class EntryIterator implements Iterator<Entry<String, String>> {
+
+    private int nextSegment = 0;
+
+    private Iterator<Entry<String, String>> current = Collections.emptyIterator();
+
+    @Override
+    public boolean hasNext() {
+      while (!current.hasNext() && nextSegment < segments.length) {
+        Segment segment = segments[nextSegment++];
+        Lock lock = segment.lock.readLock();
+        lock.lock();
+        try {
+          current = segment.entries().iterator();
+        } finally {
+          lock.unlock();
+        }
+      }
+      return current.hasNext();
+    }
+
+    @Override
+    public Entry<String, String> next() {
+      if (!hasNext()) { throw new NoSuchElementException(); }
+      return current.next();
+    }
+  }
+}
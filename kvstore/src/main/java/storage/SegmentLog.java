@@ -0,0 +1,333 @@
+package storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * <p>An append-only log of key-value mutations, split into memory-mapped segment files
+ * named {@code segment-<id>.log} under one directory.</p>
+ *
+ * <p>Each record is laid out as {@code [crc32][keyLength][valueLength][key][value]}, where
+ * a value length of -1 marks a deletion. Segments are preallocated, so the first record
+ * failing its checksum marks the end of a segment; a torn write after a crash is
+ * therefore simply cut off on recovery.</p>
+ *
+ * <p>Appends only copy bytes into the mapped segment. A background flusher forces the
+ * segment to disk and acknowledges every record appended before it started, so concurrent
+ * writers waiting in {@link #awaitDurable(long)} share one fsync (group commit).</p>
+ */
+public class SegmentLog implements Closeable {
+
+  private static final Logger logger = LoggerFactory.getLogger(SegmentLog.class);
+
+  private static final Pattern segmentName = Pattern.compile("segment-(\\d+)\\.log");
+
+  private static final int headerBytes = 12;
+
+  private static final int tombstone = -1;
+
+  private final Path directory;
+
+  private final int segmentBytes;
+
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private final Condition appended = lock.newCondition();
+
+  private final Condition flushed = lock.newCondition();
+
+  private final Thread flusher;
+
+  private long currentId;
+
+  private MappedByteBuffer current;
+
+  /** bytes ever appended since opened, used as the log sequence number */
+  private long appendedPosition = 0;
+
+  private long durablePosition = 0;
+
+  private IOException flushFailure;
+
+  private volatile boolean closed = false;
+
+  /**
+   * Open the log in the given directory, replaying every valid record in segment order
+   * to the visitor. A null value passed to the visitor means the key was deleted.
+   */
+  public SegmentLog(Path directory, int segmentBytes, BiConsumer<String, String> replay) throws IOException {
+    this(directory, segmentBytes, 0, replay);
+  }
+
+  /**
+   * Open the log like {@link #SegmentLog(Path, int, BiConsumer)}, but only replay segments
+   * from the given id on. Older segments are already covered by a snapshot and are deleted.
+   */
+  public SegmentLog(Path directory, int segmentBytes, long fromSegment, BiConsumer<String, String> replay) throws IOException {
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    Files.createDirectories(directory);
+
+    deleteSegmentsBefore(fromSegment);
+    List<Long> ids = segmentIds();
+    for (int i = 0; i < ids.size(); i++) {
+      MappedByteBuffer segment = map(ids.get(i), 0);
+      int records = replay(segment, replay);
+      logger.info("Replayed {} records from segment {}", records, ids.get(i));
+      if (i == ids.size() - 1) {
+        currentId = ids.get(i);
+        current = segment;
+        // never append behind a torn record, stale bytes after it could replay later
+        if (!atCleanEnd(segment)) { roll(0); }
+      }
+    }
+    if (current == null) {
+      currentId = fromSegment;
+      current = map(currentId, segmentBytes);
+      forceDirectory(directory);
+    }
+
+    flusher = new Thread(this::flushLoop, "segment-log-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+  }
+
+  /**
+   * Append a mutation to the log. The record is not durable until
+   * {@link #awaitDurable(long)} returns for the returned position.
+   *
+   * @param value the new value, or null to record a deletion
+   * @return the log position right after the record
+   */
+  public long append(String key, String value) throws IOException {
+    byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    int size = headerBytes + keyBytes.length + (valueBytes == null ? 0 : valueBytes.length);
+
+    lock.lock();
+    try {
+      if (closed) { throw new IOException("log is closed"); }
+      if (current.remaining() < size) { roll(size); }
+
+      CRC32 crc = new CRC32();
+      int valueLength = valueBytes == null ? tombstone : valueBytes.length;
+      ByteBuffer lengths = ByteBuffer.allocate(8).putInt(keyBytes.length).putInt(valueLength);
+      crc.update(lengths.array());
+      crc.update(keyBytes);
+      if (valueBytes != null) { crc.update(valueBytes); }
+
+      current.putInt((int) crc.getValue()).put(lengths.array()).put(keyBytes);
+      if (valueBytes != null) { current.put(valueBytes); }
+
+      appendedPosition += size;
+      appended.signal();
+      return appendedPosition;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Block until every record up to the given position has been forced to disk
+   */
+  public void awaitDurable(long position) throws IOException {
+    lock.lock();
+    try {
+      while (durablePosition < position) {
+        if (flushFailure != null) { throw flushFailure; }
+        if (closed) { throw new IOException("log is closed"); }
+        flushed.awaitUninterruptibly();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Seal the current segment so that every later record goes to a new one
+   *
+   * @return the id of the new segment
+   */
+  public long roll() throws IOException {
+    lock.lock();
+    try {
+      if (closed) { throw new IOException("log is closed"); }
+      roll(0);
+      return currentId;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Delete the segments older than the given id, once their records are covered elsewhere
+   */
+  public void deleteSegmentsBefore(long id) throws IOException {
+    for (long segment : segmentIds()) if (segment < id) {
+      Files.deleteIfExists(segmentPath(segment));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      if (closed) { return; }
+      closed = true;
+      appended.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    try {
+      flusher.join();
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+    }
+    current.force();
+  }
+
+  private void flushLoop() {
+    while (true) {
+      MappedByteBuffer segment;
+      long target;
+      lock.lock();
+      try {
+        while (appendedPosition == durablePosition && !closed) {
+          appended.awaitUninterruptibly();
+        }
+        if (appendedPosition == durablePosition) { return; }
+        segment = current;
+        target = appendedPosition;
+      } finally {
+        lock.unlock();
+      }
+
+      // records in rolled segments were forced while rolling
+      try {
+        segment.force();
+      } catch (RuntimeException e) {
+        logger.error("Failed to force segment: {}", e.getMessage());
+        lock.lock();
+        try {
+          flushFailure = new IOException(e);
+          flushed.signalAll();
+        } finally {
+          lock.unlock();
+        }
+        return;
+      }
+
+      lock.lock();
+      try {
+        durablePosition = Math.max(durablePosition, target);
+        flushed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Seal the current segment and continue appending to a new one. Must hold the lock.
+   */
+  private void roll(int recordBytes) throws IOException {
+    current.force();
+    currentId++;
+    current = map(currentId, Math.max(segmentBytes, recordBytes));
+    // records acknowledged in the new segment must not be lost with its directory entry
+    forceDirectory(directory);
+    logger.info("Rolled to segment {}", currentId);
+  }
+
+  /**
+   * Force the entries of a directory to disk, so that files created, renamed or deleted
+   * in it persist in that order
+   */
+  static void forceDirectory(Path directory) throws IOException {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+
+  private int replay(MappedByteBuffer segment, BiConsumer<String, String> replay) {
+    CRC32 crc = new CRC32();
+    int records = 0;
+    while (segment.remaining() >= headerBytes) {
+      int start = segment.position();
+      int checksum = segment.getInt();
+      int keyLength = segment.getInt();
+      int valueLength = segment.getInt();
+      int bodyLength = keyLength + Math.max(valueLength, 0);
+      if (keyLength < 0 || valueLength < tombstone || bodyLength < 0 || bodyLength > segment.remaining()) {
+        segment.position(start);
+        break;
+      }
+
+      byte[] body = new byte[bodyLength];
+      segment.get(body);
+      crc.reset();
+      crc.update(ByteBuffer.allocate(8).putInt(keyLength).putInt(valueLength).array());
+      crc.update(body);
+      if ((int) crc.getValue() != checksum) {
+        segment.position(start);
+        break;
+      }
+
+      String key = new String(body, 0, keyLength, StandardCharsets.UTF_8);
+      String value = valueLength == tombstone ? null : new String(body, keyLength, valueLength, StandardCharsets.UTF_8);
+      replay.accept(key, value);
+      records++;
+    }
+    return records;
+  }
+
+  private boolean atCleanEnd(MappedByteBuffer segment) {
+    for (int i = segment.position(); i < segment.limit() && i < segment.position() + headerBytes; i++) {
+      if (segment.get(i) != 0) { return false; }
+    }
+    return true;
+  }
+
+  private MappedByteBuffer map(long id, int minimumBytes) throws IOException {
+    try (FileChannel channel = FileChannel.open(segmentPath(id),
+      StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      long size = Math.max(channel.size(), minimumBytes);
+      return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+  }
+
+  private Path segmentPath(long id) {
+    return directory.resolve(String.format("segment-%016d.log", id));
+  }
+
+  private List<Long> segmentIds() {
+    List<Long> ids = new ArrayList<>();
+    File[] files = directory.toFile().listFiles();
+    if (files == null) { return ids; }
+    for (File file : files) {
+      Matcher m = segmentName.matcher(file.getName());
+      if (m.matches()) { ids.add(Long.parseLong(m.group(1))); }
+    }
+    ids.sort(Long::compare);
+    return ids;
+  }
+}
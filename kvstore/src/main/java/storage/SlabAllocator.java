@@ -0,0 +1,139 @@
+package storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * <p>Hands out chunks of off-heap memory in the memcached style. Direct slabs of a fixed
+ * size are each dedicated to one size class, with chunk sizes growing by a factor of 1.25,
+ * and freed chunks are kept in a per-class free list for reuse. A request larger than a
+ * slab gets a dedicated slab, dropped again when freed.</p>
+ *
+ * <p>A chunk is addressed by a long holding its slab index in the high and its offset in
+ * the low 32 bits. Not thread safe; the owner guards it.</p>
+ */
+final class SlabAllocator {
+
+  private static final int minChunkBytes = 32;
+
+  private static final double growthFactor = 1.25;
+
+  private final int slabBytes;
+
+  private final int[] chunkSizes;
+
+  private final List<ByteBuffer> slabs = new ArrayList<>();
+
+  /** indexes of dropped dedicated slabs, reused for later ones */
+  private final Deque<Integer> releasedSlabs = new ArrayDeque<>();
+
+  private final int[] currentSlab;
+
+  private final int[] nextOffset;
+
+  private final long[][] freeChunks;
+
+  private final int[] freeCounts;
+
+  private long reservedBytes = 0;
+
+  SlabAllocator(int slabBytes) {
+    this.slabBytes = slabBytes;
+
+    List<Integer> sizes = new ArrayList<>();
+    for (double size = minChunkBytes; size < slabBytes; size *= growthFactor) {
+      int aligned = ((int) size + 7) & ~7;
+      if (sizes.isEmpty() || sizes.get(sizes.size() - 1) < aligned) { sizes.add(aligned); }
+    }
+    sizes.add(slabBytes);
+    chunkSizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+
+    currentSlab = new int[chunkSizes.length];
+    Arrays.fill(currentSlab, -1);
+    nextOffset = new int[chunkSizes.length];
+    freeChunks = new long[chunkSizes.length][];
+    freeCounts = new int[chunkSizes.length];
+  }
+
+  long allocate(int bytes) {
+    if (bytes > slabBytes) { return address(addSlab(ByteBuffer.allocateDirect(bytes)), 0); }
+
+    int sizeClass = sizeClass(bytes);
+    if (freeCounts[sizeClass] > 0) {
+      return freeChunks[sizeClass][--freeCounts[sizeClass]];
+    }
+
+    int chunkBytes = chunkSizes[sizeClass];
+    if (currentSlab[sizeClass] < 0 || nextOffset[sizeClass] + chunkBytes > slabBytes) {
+      currentSlab[sizeClass] = addSlab(ByteBuffer.allocateDirect(slabBytes));
+      nextOffset[sizeClass] = 0;
+    }
+    long address = address(currentSlab[sizeClass], nextOffset[sizeClass]);
+    nextOffset[sizeClass] += chunkBytes;
+    return address;
+  }
+
+  /**
+   * @param bytes the size the chunk was allocated with
+   */
+  void free(long address, int bytes) {
+    if (bytes > slabBytes) {
+      int slab = slabIndex(address);
+      reservedBytes -= slabs.get(slab).capacity();
+      slabs.set(slab, null);
+      releasedSlabs.push(slab);
+      return;
+    }
+
+    int sizeClass = sizeClass(bytes);
+    long[] chunks = freeChunks[sizeClass];
+    if (chunks == null || freeCounts[sizeClass] == chunks.length) {
+      chunks = freeChunks[sizeClass] = Arrays.copyOf(chunks == null ? new long[0] : chunks,
+        Math.max(16, freeCounts[sizeClass] * 2));
+    }
+    chunks[freeCounts[sizeClass]++] = address;
+  }
+
+  ByteBuffer slab(long address) {
+    return slabs.get(slabIndex(address));
+  }
+
+  static int offset(long address) {
+    return (int) address;
+  }
+
+  /**
+   * @return the off-heap bytes held in slabs
+   */
+  long reservedBytes() {
+    return reservedBytes;
+  }
+
+  private int sizeClass(int bytes) {
+    int index = Arrays.binarySearch(chunkSizes, bytes);
+    return index >= 0 ? index : -index - 1;
+  }
+
+  private int addSlab(ByteBuffer slab) {
+    reservedBytes += slab.capacity();
+    if (!releasedSlabs.isEmpty()) {
+      int index = releasedSlabs.pop();
+      slabs.set(index, slab);
+      return index;
+    }
+    slabs.add(slab);
+    return slabs.size() - 1;
+  }
+
+  private static int slabIndex(long address) {
+    return (int) (address >>> 32);
+  }
+
+  private static long address(int slab, int offset) {
+    return ((long) slab << 32) | (offset & 0xffffffffL);
+  }
+}
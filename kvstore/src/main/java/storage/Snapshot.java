@@ -0,0 +1,165 @@
+package storage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * <p>A compact binary image of the key space, laid out as
+ * {@code [magic][segmentId] ([keyLength][valueLength][key][value])* [-1][count][crc32]}.
+ * The segment id tells from which log segment the replay has to continue after
+ * loading the image.</p>
+ *
+ * <p>A snapshot is written to a temporary file and atomically renamed, so the file
+ * found on startup is always complete, and its directory is forced before returning.
+ * It is read back through memory-mapped windows.</p>
+ */
+final class Snapshot {
+
+  private static final int magic = 0x4b565353; // "KVSS"
+
+  private static final int endOfRecords = -1;
+
+  private static final long window = Integer.MAX_VALUE;
+
+  private Snapshot() {}
+
+  /**
+   * @return the number of written entries
+   */
+  static long write(Path file, long segmentId, Iterable<Map.Entry<String, String>> entries) throws IOException {
+    Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+    CRC32 crc = new CRC32();
+    long count = 0;
+    try (FileChannel channel = FileChannel.open(temp, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new CheckedOutputStream(Channels.newOutputStream(channel), crc), 1 << 16));
+      out.writeInt(magic);
+      out.writeLong(segmentId);
+      for (Map.Entry<String, String> entry : entries) {
+        byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(key.length);
+        out.writeInt(value.length);
+        out.write(key);
+        out.write(value);
+        count++;
+      }
+      out.writeInt(endOfRecords);
+      out.writeLong(count);
+      out.flush();
+
+      ByteBuffer trailer = ByteBuffer.allocate(4).putInt((int) crc.getValue());
+      trailer.flip();
+      while (trailer.hasRemaining()) { channel.write(trailer); }
+      channel.force(true);
+    }
+    Files.move(temp, file, ATOMIC_MOVE, REPLACE_EXISTING);
+    // the rename must persist before the segments it covers are deleted
+    SegmentLog.forceDirectory(file.toAbsolutePath().getParent());
+    return count;
+  }
+
+  /**
+   * Pass every entry of the snapshot to the visitor
+   *
+   * @return the segment id to continue replaying from
+   */
+  static long read(Path file, BiConsumer<String, String> visitor) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, READ)) {
+      MappedReader reader = new MappedReader(channel);
+      if (reader.getInt() != magic) { throw new IOException("not a snapshot file: " + file); }
+      long segmentId = reader.getLong();
+
+      long count = 0;
+      byte[] bytes = new byte[256];
+      int keyLength;
+      while ((keyLength = reader.getInt()) != endOfRecords) {
+        int valueLength = reader.getInt();
+        if (keyLength < 0 || valueLength < 0) { throw new IOException("corrupted snapshot: " + file); }
+        if (bytes.length < keyLength + valueLength) { bytes = new byte[keyLength + valueLength]; }
+        reader.get(bytes, keyLength + valueLength);
+        visitor.accept(
+          new String(bytes, 0, keyLength, StandardCharsets.UTF_8),
+          new String(bytes, keyLength, valueLength, StandardCharsets.UTF_8));
+        count++;
+      }
+      if (reader.getLong() != count) { throw new IOException("corrupted snapshot: " + file); }
+
+      int checksum = (int) reader.checksum();
+      if (reader.getInt() != checksum) { throw new IOException("snapshot checksum mismatch: " + file); }
+      return segmentId;
+    }
+  }
+
+  /**
+   * Sequential reader over a file of any size, remapping a window whenever
+   * the next read would cross its end
+   */
+  private static class MappedReader {
+    private final FileChannel channel;
+    private final long size;
+    private final CRC32 crc = new CRC32();
+    private MappedByteBuffer buffer;
+    private long base = 0;
+    private int checked = 0;
+
+    MappedReader(FileChannel channel) throws IOException {
+      this.channel = channel;
+      this.size = channel.size();
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(window, size));
+    }
+
+    int getInt() throws IOException {
+      ensure(4);
+      return buffer.getInt();
+    }
+
+    long getLong() throws IOException {
+      ensure(8);
+      return buffer.getLong();
+    }
+
+    void get(byte[] dst, int length) throws IOException {
+      ensure(length);
+      buffer.get(dst, 0, length);
+    }
+
+    /** checksum of every byte read so far */
+    long checksum() {
+      updateChecksum();
+      return crc.getValue();
+    }
+
+    private void ensure(int bytes) throws IOException {
+      if (buffer.remaining() >= bytes) { return; }
+      updateChecksum();
+      base += buffer.position();
+      if (size - base < bytes) { throw new IOException("unexpected end of snapshot"); }
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(window, size - base));
+      checked = 0;
+    }
+
+    private void updateChecksum() {
+      ByteBuffer read = buffer.duplicate();
+      read.position(checked).limit(buffer.position());
+      crc.update(read);
+      checked = buffer.position();
+    }
+  }
+}
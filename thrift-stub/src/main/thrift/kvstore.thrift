@@ -5,6 +5,8 @@ enum ErrorCode {
     kSuccess = 0,
     kKeyNotFound = 1,
     kError = 2,
+    // kvcas found another value than the expected one.
+    kMismatch = 3,
 }
 
 struct Result {
@@ -17,10 +19,77 @@ struct Result {
   3: string errortext,
 }
 
+struct KeyValue {
+  1: string key,
+  2: string value,
+  // Expire the pair after this many milliseconds, never if unset or 0.
+  3: optional i64 ttlMillis,
+}
+
+// A change in the write log a primary streams to its backups.
+// An unset value marks a deletion.
+struct LogEntry {
+  1: i64 sequence,
+  2: string key,
+  3: optional string value,
+}
+
+// A value with the tag quorum replicas order writes by, comparing the
+// timestamp first and the node id second. An unset value marks an absent key.
+struct TaggedValue {
+  1: optional string value,
+  2: i64 timestamp,
+  3: i32 nodeId,
+}
+
+// The result of a read, with a lease on the key for the holder that asked.
+// Until the lease expires the server does not change the key without first
+// invalidating it at the holder. A leaseMillis of 0 grants no lease.
+struct LeasedResult {
+  1: Result result,
+  2: i32 leaseMillis,
+}
+
+// Keys whose leases a holder must drop, up to the given sequence number.
+struct Invalidations {
+  1: list<string> keys,
+  2: i64 sequence,
+}
+
+// A page of a key range scan, in key order. The result reports kSuccess, or
+// the error of an invalid request. The cursor is set while keys may follow.
+struct ScanPage {
+  1: Result result,
+  2: list<KeyValue> pairs,
+  3: optional string cursor,
+}
+
+// Counters and latency percentiles of one operation since the server started.
+// Latencies are measured in the server from the call to the result, in
+// nanoseconds, with 1% precision.
+struct OperationStats {
+  1: string operation,
+  2: i64 count,
+  3: i64 misses,
+  4: i64 errors,
+  5: i64 inFlight,
+  6: i64 p50Nanos,
+  7: i64 p99Nanos,
+  8: i64 p999Nanos,
+  9: i64 maxNanos,
+}
+
+struct ServerStats {
+  1: i64 uptimeMillis,
+  2: list<OperationStats> operations,
+}
+
 service KVStore {
    // If a key-value pair already exists, overwrite its value.
    // If a key-value pair does not already exist, create it.
-   Result kvset(1:string key, 2:string value),
+   // If ttlMillis is positive the pair expires after that many milliseconds,
+   // otherwise, or if omitted by an older caller, it never expires.
+   Result kvset(1:string key, 2:string value, 3:i64 ttlMillis),
 
    // If a key-value pair exists, return its value and kSuccess.
    // If a key-value pair does not exist, return error kKeyNotFound.
@@ -30,4 +99,55 @@ service KVStore {
    // If a key-value pair exists, delete it and return kSuccess.
    // If a key-value pair does not exist, return kKeyNotFound.
    Result kvdelete(1:string key),
+
+   // If the key holds the expected value, or is absent and expected is unset,
+   // set it to value and return kSuccess. Otherwise return kMismatch with the
+   // current value, or kKeyNotFound. A TTL of the key is kept.
+   Result kvcas(1:string key, 2:string expected, 3:string value),
+
+   // Add delta to the integer value of a key, an absent key counting as 0,
+   // and return the new value. Return kError if the value is not a decimal
+   // 64-bit integer or the sum overflows. A TTL of the key is kept.
+   Result kvincr(1:string key, 2:i64 delta),
+
+   // Batch variants of the get, set and delete calls, applying them to each element in a
+   // single round trip. The i-th Result corresponds to the i-th element.
+   list<Result> kvmultiget(1:list<string> keys),
+
+   list<Result> kvmultiset(1:list<KeyValue> pairs),
+
+   list<Result> kvmultidelete(1:list<string> keys),
+
+   // Return up to limit pairs whose keys are in [startKey, endKey), in the
+   // order of String.compareTo, starting after the cursor of the previous
+   // page if set. An unset startKey or endKey leaves that end unbounded. The
+   // server caps limit to bound the page size. Pairs changed during a scan may
+   // or may not be listed, the others are listed once.
+   ScanPage kvscan(1:string startKey, 2:string endKey, 3:i32 limit, 4:string cursor),
+
+   // Apply a batch of a primary's write log in order, after clearing the
+   // store if reset is set. The primary sets completesCopy on the batch that
+   // brings a backup in sync after a reset: until the backup has applied it,
+   // its store may be behind or ahead of the log and it must not serve reads.
+   // Returns the highest sequence number applied, or -1 if the server is not
+   // a backup.
+   i64 kvreplicate(1:list<LogEntry> entries, 2:bool reset, 3:bool completesCopy),
+
+   // Quorum replication: read the tagged value of a key on this replica only.
+   TaggedValue kvtagget(1:string key),
+
+   // Quorum replication: store a tagged value on this replica only, unless it
+   // holds a newer tag already. Returns whether the value was stored.
+   bool kvtagset(1:string key, 2:TaggedValue tagged),
+
+   // Near caches: like kvget, and lease the key to the holder, a unique id
+   // of the calling client.
+   LeasedResult kvleaseget(1:string key, 2:string holder),
+
+   // Near caches: acknowledge the invalidations up to the acked sequence
+   // number, then wait up to waitMillis for new ones to the holder.
+   Invalidations kvinvalidations(1:string holder, 2:i64 acked, 3:i32 waitMillis),
+
+   // Return the request statistics of this server.
+   ServerStats kvstats(),
 }